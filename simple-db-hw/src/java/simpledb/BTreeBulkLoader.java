@@ -0,0 +1,476 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * BTreeBulkLoader fills an empty BTreeFile from tuples in any order, building
+ * the tree bottom up instead of inserting the tuples one at a time.
+ * <p>
+ * The tuples are first sorted on the key field with an external merge sort:
+ * runs of up to sortPages leaves' worth of tuples are sorted in memory and
+ * spilled to temporary files, which are then merged, at most MERGE_FAN_IN at
+ * a time. Input that fits in a single run never touches the disk.
+ * <p>
+ * The sort counts the tuples, so the shape of the whole tree is known before
+ * the first page is written: every level has as few pages as the fill factor
+ * allows, and its tuples or children are spread evenly over them, so no page
+ * is less than half full. The sorted tuples are then packed into leaves, and
+ * each page is written exactly once, as soon as it is complete, with only the
+ * current page of every level in memory. Pages are numbered in the order they
+ * are started, so a page's parent and right sibling are known when it is
+ * written. The finished file has no free pages and hence no header pages.
+ * <p>
+ * Like BTreeFileEncoder, the loader writes the file directly, bypassing the
+ * BufferPool and the log. The file must be in the Catalog and empty, and
+ * nobody may use it until load returns.
+ */
+public class BTreeBulkLoader {
+
+	/** Fill factor used when none is given to the constructor */
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+	/** Number of leaves' worth of tuples sorted in memory at a time, by default */
+	public static final int DEFAULT_SORT_PAGES = 1000;
+
+	/** Maximum number of sorted runs merged at once */
+	static final int MERGE_FAN_IN = 64;
+
+	private final BTreeFile bf;
+	private final double fillFactor;
+	private final int sortPages;
+	private final TupleDesc td;
+	private final int keyField;
+	private final Comparator<Tuple> byKey;
+
+	private int nextPageNo;
+
+	/**
+	 * Create a loader that packs pages full and sorts DEFAULT_SORT_PAGES
+	 * leaves' worth of tuples in memory at a time.
+	 *
+	 * @param bf - the BTreeFile to fill
+	 */
+	public BTreeBulkLoader(BTreeFile bf) {
+		this(bf, DEFAULT_FILL_FACTOR, DEFAULT_SORT_PAGES);
+	}
+
+	/**
+	 * @param bf - the BTreeFile to fill
+	 * @param fillFactor - the fraction of every page to fill, between 0.5 and 1;
+	 * lower values leave room for later inserts
+	 * @param sortPages - the number of leaves' worth of tuples to sort in memory
+	 * at a time
+	 */
+	public BTreeBulkLoader(BTreeFile bf, double fillFactor, int sortPages) {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		if(sortPages < 1) {
+			throw new IllegalArgumentException("must sort at least one page at a time");
+		}
+		this.bf = bf;
+		this.fillFactor = fillFactor;
+		this.sortPages = sortPages;
+		this.td = bf.getTupleDesc();
+		this.keyField = bf.keyField();
+		this.byKey = new BTreeFileEncoder.TupleComparator(keyField);
+	}
+
+	/**
+	 * Fill the BTreeFile with the tuples of a HeapFile.
+	 *
+	 * @param tid - the transaction reading the HeapFile
+	 * @param hf - the HeapFile to copy
+	 * @return the number of tuples loaded
+	 */
+	public int load(TransactionId tid, HeapFile hf)
+			throws DbException, TransactionAbortedException, IOException {
+		return load(new SeqScan(tid, hf.getId()));
+	}
+
+	/**
+	 * Fill the BTreeFile with the tuples child returns.
+	 *
+	 * @param child - the tuples to load, in any order; opened and closed here
+	 * @return the number of tuples loaded
+	 * @throws DbException if the tuples do not match the BTreeFile, or the
+	 * BTreeFile is not empty
+	 */
+	public int load(OpIterator child)
+			throws DbException, TransactionAbortedException, IOException {
+		if(!td.equals(child.getTupleDesc())) {
+			throw new DbException("tuples do not match the BTreeFile");
+		}
+		if(bf.getFile().length() > 0) {
+			throw new DbException("can only bulk load an empty BTreeFile");
+		}
+		int leafCapacity = new BTreeLeafPage(new BTreePageId(bf.getId(), 0, BTreePageId.LEAF),
+				BTreePage.createEmptyPageData(), keyField).getMaxTuples();
+		int maxEntries = new BTreeInternalPage(new BTreePageId(bf.getId(), 0, BTreePageId.INTERNAL),
+				BTreePage.createEmptyPageData(), keyField).getMaxEntries();
+
+		int[] count = new int[1];
+		SortedTuples sorted = sort(child, sortPages * leafCapacity, count);
+		try {
+			if(count[0] > 0) {
+				build(sorted, count[0], leafCapacity, maxEntries);
+			}
+		}
+		finally {
+			sorted.close();
+		}
+		return count[0];
+	}
+
+	/**
+	 * The number of pages for the given number of items (tuples or children),
+	 * at most capacity per page: as few as possible with no more than target
+	 * per page, but at least enough that no page is over capacity.
+	 */
+	private static int pagesFor(int items, int capacity, int target) {
+		return Math.max(1, Math.max((items + capacity - 1) / capacity, items / target));
+	}
+
+	/**
+	 * Plan the levels of a tree of count tuples, then write its pages from
+	 * the sorted tuples and finally the root pointer page.
+	 */
+	private void build(SortedTuples sorted, int count, int leafCapacity, int maxEntries)
+			throws DbException, IOException {
+		int leafTarget = Math.max(1, (int) (fillFactor * leafCapacity));
+		int childTarget = (int) (fillFactor * maxEntries) + 1;
+
+		Level leaves = new Level(BTreePageId.LEAF, -1, count,
+				pagesFor(count, leafCapacity, leafTarget));
+		Level root = leaves;
+		while(root.numPages > 1) {
+			Level up = new Level(BTreePageId.INTERNAL, root.category, root.numPages,
+					pagesFor(root.numPages, maxEntries + 1, childTarget));
+			root.parent = up;
+			root = up;
+		}
+
+		nextPageNo = 1;
+		Tuple t;
+		while((t = sorted.next()) != null) {
+			leaves.addTuple(t);
+		}
+
+		byte[] data = BTreeFileEncoder.convertToRootPtrPage(root.pid.getPageNumber(), root.category, 0);
+		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(bf.getId()), data));
+	}
+
+	/**
+	 * One level of the tree being built. Items (tuples on the leaf level,
+	 * children on the others) arrive in key order and fill the pages of the
+	 * level one after the other; a page is written as soon as it has all the
+	 * items planned for it.
+	 */
+	private class Level {
+		final int category;
+		final int childCategory;
+		final int numItems;
+		final int numPages;
+		Level parent; // null on the root's level
+
+		private int page = -1; // index of the current page on this level
+		private int pageItems; // items planned for the current page
+		private int items; // items in the current page so far
+		private BTreePageId pid;
+		private BTreePageId parentId;
+		private BTreePageId leftId; // leaves only
+		private BTreePageId rightId; // leaves only, numbered before the page is started
+		private final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		private final ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		private BTreePageId lastChild;
+		private Field lastKey; // leaves only
+
+		Level(int category, int childCategory, int numItems, int numPages) {
+			this.category = category;
+			this.childCategory = childCategory;
+			this.numItems = numItems;
+			this.numPages = numPages;
+		}
+
+		/**
+		 * Start the next page of this level, whose first item has the given
+		 * key, and add the page to its parent.
+		 */
+		private void startPage(Field key) throws DbException, IOException {
+			page++;
+			pageItems = numItems / numPages + (page < numItems % numPages ? 1 : 0);
+			items = 0;
+			leftId = pid;
+			pid = rightId != null ? rightId : new BTreePageId(bf.getId(), nextPageNo++, category);
+			rightId = null;
+			if(parent == null) {
+				parentId = BTreeRootPtrPage.getId(bf.getId());
+			}
+			else {
+				parentId = parent.addChild(key, pid);
+			}
+		}
+
+		void addTuple(Tuple t) throws DbException, IOException {
+			if(page < 0) {
+				startPage(t.getField(keyField));
+			}
+			else if(items == pageItems) {
+				startPage(BTreeFile.separator(lastKey, t.getField(keyField)));
+			}
+			tuples.add(t);
+			lastKey = t.getField(keyField);
+			if(++items == pageItems) {
+				writeLeaf();
+			}
+		}
+
+		/**
+		 * Add a child page whose smallest key is key. The key of the first
+		 * child of a page goes to the page's own parent instead.
+		 *
+		 * @return the id of the page the child went to
+		 */
+		BTreePageId addChild(Field key, BTreePageId child) throws DbException, IOException {
+			if(page < 0 || items == pageItems) {
+				startPage(key);
+			}
+			else {
+				entries.add(new BTreeEntry(key, lastChild, child));
+			}
+			lastChild = child;
+			BTreePageId id = pid;
+			if(++items == pageItems) {
+				writeInternal();
+			}
+			return id;
+		}
+
+		private void writeLeaf() throws DbException, IOException {
+			byte[] data = BTreeFileEncoder.convertToLeafPage(tuples, BufferPool.getPageSize(),
+					td.numFields(), types(), keyField);
+			BTreeLeafPage leaf = new BTreeLeafPage(pid, data, keyField);
+			leaf.setParentId(parentId);
+			leaf.setLeftSiblingId(leftId);
+			if(page < numPages - 1) {
+				rightId = new BTreePageId(bf.getId(), nextPageNo++, category);
+			}
+			leaf.setRightSiblingId(rightId);
+			bf.writePage(leaf);
+			tuples.clear();
+		}
+
+		private void writeInternal() throws DbException, IOException {
+			byte[] data = BTreeFileEncoder.convertToInternalPage(entries, BufferPool.getPageSize(),
+					td.getFieldType(keyField), childCategory);
+			BTreeInternalPage internal = new BTreeInternalPage(pid, data, keyField);
+			internal.setParentId(parentId);
+			bf.writePage(internal);
+			entries.clear();
+		}
+	}
+
+	private Type[] types() {
+		Type[] types = new Type[td.numFields()];
+		for(int i = 0; i < types.length; i++) {
+			types[i] = td.getFieldType(i);
+		}
+		return types;
+	}
+
+	/**
+	 * Read all of child into sorted runs of at most runSize tuples, and merge
+	 * the runs until at most MERGE_FAN_IN are left.
+	 *
+	 * @param count - set to the number of tuples read
+	 * @return the tuples of child in key order
+	 */
+	private SortedTuples sort(OpIterator child, int runSize, int[] count)
+			throws DbException, TransactionAbortedException, IOException {
+		ArrayList<SortedTuples> runs = new ArrayList<SortedTuples>();
+		boolean done = false;
+		try {
+			ArrayList<Tuple> run = new ArrayList<Tuple>();
+			child.open();
+			try {
+				while(child.hasNext()) {
+					run.add(child.next());
+					count[0]++;
+					if(run.size() == runSize) {
+						runs.add(spill(sorted(run)));
+						run = new ArrayList<Tuple>();
+					}
+				}
+			}
+			finally {
+				child.close();
+			}
+			if(runs.isEmpty()) {
+				done = true;
+				return sorted(run);
+			}
+			if(!run.isEmpty()) {
+				runs.add(spill(sorted(run)));
+			}
+			while(runs.size() > MERGE_FAN_IN) {
+				ArrayList<SortedTuples> merged = new ArrayList<SortedTuples>();
+				for(int i = 0; i < runs.size(); i += MERGE_FAN_IN) {
+					List<SortedTuples> group = runs.subList(i, Math.min(i + MERGE_FAN_IN, runs.size()));
+					merged.add(spill(new MergedTuples(new ArrayList<SortedTuples>(group))));
+				}
+				runs = merged;
+			}
+			done = true;
+			return new MergedTuples(runs);
+		}
+		finally {
+			if(!done) {
+				for(SortedTuples run : runs) {
+					run.close();
+				}
+			}
+		}
+	}
+
+	private SortedTuples sorted(final ArrayList<Tuple> run) {
+		Collections.sort(run, byKey);
+		return new SortedTuples() {
+			private final Iterator<Tuple> it = run.iterator();
+
+			Tuple next() {
+				return it.hasNext() ? it.next() : null;
+			}
+		};
+	}
+
+	/**
+	 * Write tuples to a temporary file.
+	 *
+	 * @return the tuples read back from the file
+	 */
+	private SortedTuples spill(SortedTuples tuples) throws IOException {
+		File f = File.createTempFile("btreerun", ".dat");
+		f.deleteOnExit();
+		long n = 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			Tuple t;
+			while((t = tuples.next()) != null) {
+				for(int i = 0; i < td.numFields(); i++) {
+					t.getField(i).serialize(out);
+				}
+				n++;
+			}
+		}
+		finally {
+			out.close();
+			tuples.close();
+		}
+		return new RunTuples(f, n);
+	}
+
+	/** A stream of tuples in key order */
+	private static abstract class SortedTuples {
+		/** @return the next tuple, or null after the last one */
+		abstract Tuple next() throws IOException;
+
+		/** Release the files behind the stream */
+		void close() {
+		}
+	}
+
+	/** The tuples of a temporary file written by spill, which close deletes */
+	private class RunTuples extends SortedTuples {
+		private final File f;
+		private final DataInputStream in;
+		private long remaining;
+
+		RunTuples(File f, long n) throws IOException {
+			this.f = f;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			this.remaining = n;
+		}
+
+		Tuple next() throws IOException {
+			if(remaining == 0) {
+				return null;
+			}
+			remaining--;
+			Tuple t = new Tuple(td);
+			try {
+				for(int i = 0; i < td.numFields(); i++) {
+					t.setField(i, td.getFieldType(i).parse(in));
+				}
+			} catch (ParseException e) {
+				throw new IOException("corrupt sort run " + f, e);
+			}
+			return t;
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// only reading
+			}
+			f.delete();
+		}
+	}
+
+	/**
+	 * The merge of several streams. Equal keys come out in the order of the
+	 * streams, so the sort keeps tuples with equal keys in input order.
+	 */
+	private class MergedTuples extends SortedTuples {
+		private final List<SortedTuples> inputs;
+		private final PriorityQueue<Head> heads;
+
+		MergedTuples(List<SortedTuples> inputs) throws IOException {
+			this.inputs = inputs;
+			this.heads = new PriorityQueue<Head>(inputs.size(), new Comparator<Head>() {
+				public int compare(Head a, Head b) {
+					int c = byKey.compare(a.tuple, b.tuple);
+					return c != 0 ? c : Integer.compare(a.input, b.input);
+				}
+			});
+			for(int i = 0; i < inputs.size(); i++) {
+				Tuple t = inputs.get(i).next();
+				if(t != null) {
+					heads.add(new Head(t, i));
+				}
+			}
+		}
+
+		Tuple next() throws IOException {
+			Head h = heads.poll();
+			if(h == null) {
+				return null;
+			}
+			Tuple t = h.tuple;
+			h.tuple = inputs.get(h.input).next();
+			if(h.tuple != null) {
+				heads.add(h);
+			}
+			return t;
+		}
+
+		void close() {
+			for(SortedTuples in : inputs) {
+				in.close();
+			}
+		}
+	}
+
+	/** The next tuple of one input of a merge */
+	private static class Head {
+		Tuple tuple;
+		final int input;
+
+		Head(Tuple tuple, int input) {
+			this.tuple = tuple;
+			this.input = input;
+		}
+	}
+}
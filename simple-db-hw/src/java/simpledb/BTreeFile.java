@@ -1,7 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.Predicate.Op;
 
@@ -24,6 +26,15 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final DbFileChannel io;
+
+	/** How often insertTuple descends optimistically before it locks the whole path. */
+	static final int OPTIMISTIC_DESCENTS = 3;
+
+	// bumped at the end of every split, merge or redistribution; see findLeafPageOptimistic
+	private final AtomicLong structureChanges = new AtomicLong(0);
+	// bumped at the end of every merge or redistribution
+	private final AtomicLong merges = new AtomicLong(0);
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -38,6 +49,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.io = new DbFileChannel(f);
 	}
 
 	/**
@@ -78,14 +90,12 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
+				int retval = io.read(ByteBuffer.wrap(pageBuf), 0);
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BTreeRootPtrPage.getPageSize()) {
@@ -98,13 +108,8 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
+				int retval = io.read(ByteBuffer.wrap(pageBuf), pageOffset(id.getPageNumber()));
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BufferPool.getPageSize()) {
@@ -112,29 +117,10 @@ public class BTreeFile implements DbFile {
 							+ BufferPool.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+				return PageType.of(id).makePage(this, id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
@@ -148,16 +134,23 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			io.write(ByteBuffer.wrap(data), 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			io.write(ByteBuffer.wrap(data), pageOffset(id.getPageNumber()));
 		}
+		// the log forgets the page's redo records once this returns, so the
+		// page must be on disk, not just in the OS cache
+		io.force();
+	}
+	
+	/**
+	 * Returns the file offset of a page other than the root pointer page.
+	 * Page numbers start at 1, right after the root pointer page.
+	 */
+	private static long pageOffset(int pgno) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgno - 1) * BufferPool.getPageSize();
 	}
 	
 	/**
@@ -199,36 +192,158 @@ public class BTreeFile implements DbFile {
 	            return (BTreeLeafPage) this.getPage(tid, dirtypages, pid, perm);
 	     } 
 		 else {
-	            // internal and page can not be empty
-	            BTreePageId nextSearchId;
 	            BTreeInternalPage searchPg = (BTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-
-	            BTreeEntry entry;
-	            Iterator<BTreeEntry> it = searchPg.iterator();
-	            if (it.hasNext()) {
-	                entry = it.next();
-	            } else {
-	                throw new DbException("findLeafPage: InternalPage must contain at least one data");
-	            }
-
-	            if (f == null) {
-	                nextSearchId = entry.getLeftChild();
-	            } else {
-	                while (f.compare(Op.GREATER_THAN, entry.getKey()) && it.hasNext()) {
-	                    entry = it.next();
-	                }
-
-	                if (f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
-	                    nextSearchId = entry.getLeftChild();
-	                } else {
-	                	// greater than the last one
-	                    nextSearchId = entry.getRightChild();
-	                }
-	            }
-	            return findLeafPage(tid, dirtypages, nextSearchId, perm, f);
+	            return findLeafPage(tid, dirtypages, childFor(searchPg, f), perm, f);
 	    }
         //return null;
 	}
+
+	/**
+	 * Suffix truncation: returns the shortest key that separates a leaf whose
+	 * last key is left from the leaf after it, whose first key is right. For
+	 * string keys, that is the shortest prefix of right that is greater than
+	 * left; other keys, and equal keys, are returned as they are.
+	 */
+	static Field separator(Field left, Field right) {
+		if(!(right instanceof StringField) || !left.compare(Op.LESS_THAN, right)) {
+			return right;
+		}
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int i = 0;
+		while(i < l.length() && l.charAt(i) == r.charAt(i)) {
+			i++;
+		}
+		return new StringField(r.substring(0, i + 1), Type.STRING_LEN);
+	}
+
+	/**
+	 * @return the child of an internal page under which the left-most leaf possibly
+	 * containing the key field f lies, or the left-most child if f is null
+	 */
+	private static BTreePageId childFor(BTreeInternalPage searchPg, Field f) throws DbException {
+		// internal and page can not be empty
+		BTreeEntry entry;
+		Iterator<BTreeEntry> it = searchPg.iterator();
+		if (it.hasNext()) {
+			entry = it.next();
+		} else {
+			throw new DbException("findLeafPage: InternalPage must contain at least one data");
+		}
+
+		if (f == null) {
+			return entry.getLeftChild();
+		}
+		while (f.compare(Op.GREATER_THAN, entry.getKey()) && it.hasNext()) {
+			entry = it.next();
+		}
+		if (f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
+			return entry.getLeftChild();
+		}
+		// greater than the last one
+		return entry.getRightChild();
+	}
+
+	/**
+	 * Find and lock the leaf page where key field f belongs, or the left-most leaf if f is
+	 * null, without keeping locks on the pages above it. The root pointer and internal
+	 * pages are locked READ_ONLY only while their child pointer is read, like a latch, and
+	 * unlocked right after unless tid held a lock on them already. Concurrent inserts
+	 * therefore do not keep each other from splitting the upper levels of the tree, and a
+	 * split locks the parents it changes only when it happens, through the parent pointers.
+	 * Readers do not hold the path either, so they never hold up a split above their leaves.
+	 * <p>
+	 * Once the path is unlocked, another transaction may change the tree before tid gets to
+	 * the leaf. The changes are counted: every split, merge and redistribution bumps
+	 * structureChanges after it is done, and every merge or redistribution, the changes that
+	 * can move tuples to a leaf further left, also bumps merges. While such a transaction
+	 * still holds its locks the descent waits for it at the pages it changed. If the given
+	 * counter moved during the descent, the pages are given back and null returned, and the
+	 * caller tries again.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the key field to search for
+	 * @param changes - the counter of the changes that make the leaf found unusable
+	 * @return the leaf page, or null if the tree changed during the descent or has no root yet
+	 */
+	private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			Permissions perm, Field f, AtomicLong changes)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		long seen = changes.get();
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = bp.holdsLock(tid, rootPtrId);
+		BTreeRootPtrPage rootPtr = perm == Permissions.READ_WRITE ? getRootPtrPage(tid, dirtypages)
+				: (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		BTreePageId pid = rootPtr.getRootId();
+		if(!held) {
+			bp.releasePage(tid, rootPtrId);
+		}
+		if(pid == null) {
+			return null;
+		}
+
+		while(pid.pgcateg() != BTreePageId.LEAF) {
+			held = bp.holdsLock(tid, pid);
+			BTreeInternalPage searchPg = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			// the page may have been freed, and reused as another kind of page
+			BTreePageId child = changes.get() == seen ? childFor(searchPg, f) : null;
+			if(!held) {
+				bp.releasePage(tid, pid);
+			}
+			if(child == null) {
+				return null;
+			}
+			pid = child;
+		}
+
+		held = bp.holdsLock(tid, pid);
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		if(changes.get() != seen) {
+			// nothing was changed yet; the page is not dirty on our account
+			dirtypages.remove(pid);
+			if(!held) {
+				bp.releasePage(tid, pid);
+			}
+			return null;
+		}
+		return leaf;
+	}
+
+	/**
+	 * Find and lock with READ_ONLY permission the first leaf page a scan for key field f
+	 * (or of the whole file, if f is null) has to read, for the iterators.
+	 * <p>
+	 * The pages above the leaf are not kept locked. The iterators move right along the
+	 * sibling pointers, so a leaf that was split after its parent was read still leads to
+	 * every tuple the scan wants: a split only moves tuples to the right. Merges and
+	 * redistributions can move them to the left, and make the descent start over.
+	 * 
+	 * @param tid - the transaction id
+	 * @param f - the field to search for
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLeafPageForScan(TransactionId tid, Field f)
+			throws DbException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		try {
+			for(int i = 0; i < OPTIMISTIC_DESCENTS; ++i) {
+				BTreeLeafPage leaf = findLeafPageOptimistic(tid, dirtypages, Permissions.READ_ONLY, f, merges);
+				if(leaf != null) {
+					return leaf;
+				}
+			}
+		} catch (IOException e) {
+			// only the READ_WRITE descent creates pages
+			throw new DbException("findLeafPageForScan: " + e);
+		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, rootPtr.getRootId(), Permissions.READ_ONLY, f);
+	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
@@ -295,7 +410,8 @@ public class BTreeFile implements DbFile {
 	        }
 
 	        // assert newRightSib.getNumTuples() >= 1;
-	        Field midkey = tupleToMove[0].getField(keyField);
+	        Field midkey = separator(page.reverseIterator().next().getField(keyField),
+	        		tupleToMove[0].getField(keyField));
 	        BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midkey);
 
 	        BTreePageId oldRightSibId = page.getRightSiblingId();
@@ -313,7 +429,7 @@ public class BTreeFile implements DbFile {
 	        parent.insertEntry(newParentEntry);
 	        // set dirtypages and old sibs
 	        if (oldRightSibId != null) {
-	            BTreeLeafPage oldRightSib = (BTreeLeafPage) getPage(tid, dirtypages, page.getRightSiblingId(), Permissions.READ_WRITE);
+	            BTreeLeafPage oldRightSib = (BTreeLeafPage) getPage(tid, dirtypages, oldRightSibId, Permissions.READ_WRITE);
 	            oldRightSib.setLeftSiblingId(newRightSib.getId());
 	            dirtypages.put(oldRightSib.getId(), oldRightSib);
 	        }
@@ -321,6 +437,7 @@ public class BTreeFile implements DbFile {
 	        dirtypages.put(parent.getId(), parent);
 	        dirtypages.put(page.getId(), page);
 	        dirtypages.put(newRightSib.getId(), newRightSib);
+	        structureChanges.incrementAndGet();
 
 	        if (field.compare(Op.GREATER_THAN, midkey)) {
 	            return newRightSib;
@@ -369,7 +486,7 @@ public class BTreeFile implements DbFile {
 		BTreeInternalPage newInternalPg = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 
         Iterator<BTreeEntry> it = page.reverseIterator();
-        BTreeEntry[] entryToMove = new BTreeEntry[(page.getNumEntries()+1) / 2];
+        BTreeEntry[] entryToMove = new BTreeEntry[page.getNumEntriesToSplitOff()];
         int moveCnt = entryToMove.length - 1;
         BTreeEntry midKey = null;
 
@@ -402,6 +519,7 @@ public class BTreeFile implements DbFile {
         dirtypages.put(page.getId(), page);
         dirtypages.put(newInternalPg.getId(), newInternalPg);
         dirtypages.put(parent.getId(), parent);
+        structureChanges.incrementAndGet();
 
         if (field.compare(Op.GREATER_THAN, midKey.getKey())) {
             return newInternalPg;
@@ -559,19 +677,30 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		// find the leaf without keeping the path locked, see findLeafPageOptimistic
+		BTreeLeafPage leafPage = null;
+		for(int i = 0; leafPage == null && i < OPTIMISTIC_DESCENTS; ++i) {
+			leafPage = findLeafPageOptimistic(tid, dirtypages, Permissions.READ_WRITE,
+					t.getField(keyField), structureChanges);
+		}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		if(leafPage == null) {
+			// get a read lock on the root pointer page and use it to locate the root page
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			BTreePageId rootId = rootPtr.getRootId();
+
+			if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
+				rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setRootId(rootId);
+			}
+
+			// find and lock the left-most leaf page corresponding to the key field,
+			// keeping read locks on the whole path so that it cannot change
+			leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// split the leaf page if there are no more slots available
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
@@ -630,6 +759,8 @@ public class BTreeFile implements DbFile {
 		else { // BTreePageId.INTERNAL
 			handleMinOccupancyInternalPage(tid, dirtypages, (BTreeInternalPage) page, parent, leftEntry, rightEntry);
 		}
+		merges.incrementAndGet();
+		structureChanges.incrementAndGet();
 	}
 	
 	/**
@@ -732,7 +863,9 @@ public class BTreeFile implements DbFile {
 
         // assert rhs.getTuple(0) != null;
         if (rhs.getNumTuples() > 0) {
-            entry.setKey(rhs.iterator().next().getField(keyField));
+            BTreeLeafPage lhs = isRightSibling ? page : sibling;
+            entry.setKey(separator(lhs.reverseIterator().next().getField(keyField),
+                    rhs.iterator().next().getField(keyField)));
             parent.updateEntry(entry);
         }
 	}
@@ -815,7 +948,7 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-        int numToMove = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+        int numToMove = leftSibling.getNumEntriesToLend(page, true);
         BTreeEntry[] entryToMove = new BTreeEntry[numToMove];
 
         Iterator<BTreeEntry> it = leftSibling.reverseIterator();
@@ -878,7 +1011,7 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
-		int numToMove = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		int numToMove = rightSibling.getNumEntriesToLend(page, false);
         BTreeEntry[] btentries = new BTreeEntry[numToMove];
 
         Iterator<BTreeEntry> it = rightSibling.iterator();
@@ -1047,7 +1180,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -1114,13 +1247,10 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				io.write(ByteBuffer.wrap(emptyRootPtrData), 0);
+				io.write(ByteBuffer.wrap(emptyLeafData), emptyRootPtrData.length);
 			}
 		}
 
@@ -1175,12 +1305,9 @@ public class BTreeFile implements DbFile {
 		// or there are no free slots
 		if(headerId == null) {		
 			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
+				// create the new page at the end of the file
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				io.write(ByteBuffer.wrap(emptyData), io.size());
 				emptyPageNo = numPages();
 			}
 		}
@@ -1211,10 +1338,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		io.write(ByteBuffer.wrap(BTreePage.createEmptyPageData()), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1362,10 +1486,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPageForScan(tid, null);
 		it = curp.iterator();
 	}
 
@@ -1386,8 +1507,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 				curp = null;
 			}
 			else {
+				// a full scan walks the leaves once, so do not let them
+				// push internal pages out of the buffer pool
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, true);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1447,15 +1570,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPageForScan(tid, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPageForScan(tid, null);
 		}
 		it = curp.iterator();
 	}
@@ -629,6 +629,20 @@ public class BTreeFileEncoder {
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
+		// string keys may use the variable-length format, which holds at least
+		// as many entries
+		if (BTreeInternalPage.usesCompactFormat(keyType, npagebytes)) {
+			Collections.sort(entries, new EntryComparator());
+			ArrayList<Field> keys = new ArrayList<Field>();
+			ArrayList<Integer> children = new ArrayList<Integer>();
+			for (int e = 0; e < entries.size() && e < nentries; e++) {
+				keys.add(entries.get(e).getKey());
+				children.add(entries.get(e).getRightChild().getPageNumber());
+			}
+			return BTreeInternalPage.createCompactPageData(npagebytes, 0, childPageCategory,
+					entries.get(0).getLeftChild().getPageNumber(), keys, children);
+		}
+
 		//  per entry, we need one bit; there are nentries per page, so we need
 		// nentries bits, plus 1 for the extra child pointer.
 		int nheaderbytes = (nentries + 1) / 8;
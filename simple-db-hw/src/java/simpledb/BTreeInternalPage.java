@@ -8,6 +8,19 @@ import simpledb.Predicate.Op;
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Pages keyed on a fixed-size type store their entries in fixed-size slots.
+ * Pages keyed on strings, which are padded to Type.STRING_LEN bytes in a
+ * tuple, use a variable-length format instead, as long as the page can hold
+ * at least eight keys of the maximum length: the entries are stored one after
+ * the other, each key as the length of the prefix it shares with the key
+ * before it followed by the rest of its bytes. Such a page is full when its
+ * bytes run out rather than its slots, so it holds many more short keys, and
+ * the more so since separators pushed up from leaves are truncated to the
+ * shortest string that separates the two leaves. Its child category byte has
+ * the COMPACT_FORMAT bit set; a string-keyed page without it was written in
+ * the fixed-size format before that existed, is read in that format, and is
+ * written back in the variable-length one.
  *
  * @see BTreeFile
  * @see BufferPool
@@ -21,6 +34,25 @@ public class BTreeInternalPage extends BTreePage {
 	
 	private int childCategory; // either leaf or internal
 
+	// the variable-length format starts with the parent pointer, the child
+	// category, the number of entries and the first child pointer
+	private static final int COMPACT_HEADER_SIZE = 2 * INDEX_SIZE + 1 + 2;
+	// and then has a child pointer, the length of the shared prefix and the
+	// length of the rest of the key for each entry; keys are at most
+	// Type.STRING_LEN (128) bytes, so both lengths fit in a byte
+	private static final int COMPACT_ENTRY_OVERHEAD = INDEX_SIZE + 2;
+	private static final int COMPACT_MAX_ENTRY_SIZE = COMPACT_ENTRY_OVERHEAD + Type.STRING_LEN;
+	// set in the child category byte of a page in the variable-length format
+	private static final int COMPACT_FORMAT = 0x40;
+
+	private final boolean compact;
+	// on a variable-length page, the encoded bytes of each slot's key, kept
+	// in step with keys[]; null otherwise
+	private final byte keyBytes[][];
+	// the bytes the entries of a variable-length page take, or -1 if a
+	// change to the page made it stale
+	private int usedBytes = -1;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -67,8 +99,26 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this.compact = usesCompactFormat(td.getFieldType(keyField), BufferPool.getPageSize());
+		// a variable-length page never has more entries than empty keys would fill
+		this.numSlots = compact ? compactCapacity() / COMPACT_ENTRY_OVERHEAD + 1 : getMaxEntries() + 1;
+		this.keyBytes = compact ? new byte[numSlots][] : null;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		if(compact) {
+			header = new byte[getHeaderSize()];
+			keys = new Field[numSlots];
+			children = new int[numSlots];
+			if((data[INDEX_SIZE] & COMPACT_FORMAT) != 0) {
+				readCompact(dis);
+			}
+			else {
+				// an empty page, or one from a file written in the fixed-size format
+				readFixedFormat(dis);
+			}
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 
 		// Read the parent pointer
 		try {
@@ -111,10 +161,42 @@ public class BTreeInternalPage extends BTreePage {
 		setBeforeImage();
 	}
 
+	/**
+	 * @return true if internal pages of the given size, keyed on the given
+	 * type, use the variable-length format
+	 */
+	static boolean usesCompactFormat(Type keyType, int pageSize) {
+		return keyType == Type.STRING_TYPE && compactMaxEntries(pageSize) >= 8;
+	}
+
+	/**
+	 * The number of keys of the maximum length a variable-length page is sure
+	 * to hold, keeping room for one more. Updating a key in place can make it
+	 * longer; the room kept lets a page that looks full take that.
+	 */
+	private static int compactMaxEntries(int pageSize) {
+		return (pageSize - COMPACT_HEADER_SIZE - COMPACT_MAX_ENTRY_SIZE) / COMPACT_MAX_ENTRY_SIZE;
+	}
+
+	/** The bytes a variable-length page has for its entries */
+	private static int compactCapacity() {
+		return BufferPool.getPageSize() - COMPACT_HEADER_SIZE;
+	}
+
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * A page with variable-length keys may hold many more; this is the number of
+	 * keys of the maximum length it can hold.
  	 */
 	public int getMaxEntries() {        
+		if(compact) {
+			return compactMaxEntries(BufferPool.getPageSize());
+		}
+		return fixedMaxEntries();
+	}
+
+	/** The number of entries a page in the fixed-size format holds */
+	private int fixedMaxEntries() {
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
@@ -129,7 +211,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = numSlots;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
@@ -220,6 +302,168 @@ public class BTreeInternalPage extends BTreePage {
 		return child;
 	}
 
+	/**
+	 * Read the entries of a page in the variable-length format into the
+	 * first slots.
+	 */
+	private void readCompact(DataInputStream dis) throws IOException {
+		parent = dis.readInt();
+		childCategory = dis.readByte() & ~COMPACT_FORMAT;
+		int numEntries = dis.readUnsignedShort();
+		int firstChild = dis.readInt();
+		if(firstChild == 0) {
+			return;
+		}
+		children[0] = firstChild;
+		markSlotUsed(0, true);
+		byte[] prev = new byte[0];
+		for(int i = 1; i <= numEntries; i++) {
+			children[i] = dis.readInt();
+			int shared = dis.readUnsignedByte();
+			byte[] key = Arrays.copyOf(prev, shared + dis.readUnsignedByte());
+			dis.readFully(key, shared, key.length - shared);
+			keys[i] = new StringField(new String(key, StringField.CHARSET), Type.STRING_LEN);
+			keyBytes[i] = key;
+			markSlotUsed(i, true);
+			prev = key;
+		}
+	}
+
+	/**
+	 * Read the entries of a string-keyed page in the fixed-size format into
+	 * the first slots, so that it is written back in the variable-length
+	 * format. A full page fits, as its keys are no longer than the maximum
+	 * and each entry takes two bytes less.
+	 */
+	private void readFixedFormat(DataInputStream dis) throws IOException {
+		int slots = fixedMaxEntries() + 1;
+		parent = dis.readInt();
+		childCategory = dis.readByte();
+		byte[] used = new byte[(slots + 7) / 8];
+		dis.readFully(used);
+		Field[] fixedKeys = new Field[slots];
+		for(int i = 1; i < slots; i++) {
+			if((used[i / 8] & (1 << (i % 8))) == 0) {
+				dis.skipBytes(Type.STRING_TYPE.getLen());
+				continue;
+			}
+			try {
+				fixedKeys[i] = Type.STRING_TYPE.parse(dis);
+			} catch (java.text.ParseException e) {
+				throw new IOException("parsing error!", e);
+			}
+		}
+		int next = 1;
+		for(int i = 0; i < slots; i++) {
+			int child = dis.readInt();
+			if((used[i / 8] & (1 << (i % 8))) == 0) {
+				continue;
+			}
+			int slot = i == 0 ? 0 : next++;
+			children[slot] = child;
+			setKey(slot, fixedKeys[i]);
+			markSlotUsed(slot, true);
+		}
+	}
+
+	/**
+	 * Create the data of a page in the variable-length format.
+	 *
+	 * @param pageSize - the size of the page
+	 * @param parent - the page number of the parent
+	 * @param childCategory - the category of the child pages
+	 * @param firstChild - the page number of the left-most child, or 0 if the
+	 * page is empty
+	 * @param keys - the keys of the page, in order
+	 * @param children - the page number of the child right of each key
+	 * @throws IOException if the entries do not fit on the page
+	 */
+	static byte[] createCompactPageData(int pageSize, int parent, int childCategory,
+			int firstChild, List<Field> keys, List<Integer> children) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(parent);
+		dos.writeByte(childCategory | COMPACT_FORMAT);
+		dos.writeShort(keys.size());
+		dos.writeInt(firstChild);
+		byte[] prev = new byte[0];
+		for(int i = 0; i < keys.size(); i++) {
+			byte[] key = ((StringField) keys.get(i)).getBytes();
+			int shared = sharedPrefix(prev, key);
+			dos.writeInt(children.get(i));
+			dos.writeByte(shared);
+			dos.writeByte(key.length - shared);
+			dos.write(key, shared, key.length - shared);
+			prev = key;
+		}
+		if(dos.size() > pageSize) {
+			throw new IOException("entries do not fit on an internal page");
+		}
+		dos.write(new byte[pageSize - dos.size()]);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	private static int sharedPrefix(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		int i = 0;
+		while(i < n && a[i] == b[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	/** Put a key in a slot, and on a variable-length page its bytes too. */
+	private void setKey(int i, Field key) {
+		keys[i] = key;
+		if(compact) {
+			keyBytes[i] = key == null ? null : ((StringField) key).getBytes();
+			usedBytes = -1;
+		}
+	}
+
+	/** @return the stored bytes of the keys of this page, in order */
+	private ArrayList<byte[]> keyValues() {
+		ArrayList<byte[]> values = new ArrayList<byte[]>();
+		for(int i = 1; i < numSlots; i++) {
+			if(isSlotUsed(i)) {
+				values.add(keyBytes[i]);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return the number of bytes each entry of this variable-length page
+	 * takes, in order
+	 */
+	private int[] entrySizes(ArrayList<byte[]> values) {
+		int[] sizes = new int[values.size()];
+		byte[] prev = new byte[0];
+		for(int i = 0; i < sizes.length; i++) {
+			byte[] key = values.get(i);
+			sizes[i] = COMPACT_ENTRY_OVERHEAD + key.length - sharedPrefix(prev, key);
+			prev = key;
+		}
+		return sizes;
+	}
+
+	/** @return the number of bytes the entries of this variable-length page take */
+	private int entryBytes() {
+		if(usedBytes < 0) {
+			int bytes = 0;
+			byte[] prev = new byte[0];
+			for(int i = 1; i < numSlots; i++) {
+				if(isSlotUsed(i)) {
+					bytes += COMPACT_ENTRY_OVERHEAD + keyBytes[i].length - sharedPrefix(prev, keyBytes[i]);
+					prev = keyBytes[i];
+				}
+			}
+			usedBytes = bytes;
+		}
+		return usedBytes;
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -232,6 +476,23 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		if(compact) {
+			ArrayList<Field> pageKeys = new ArrayList<Field>();
+			ArrayList<Integer> pageChildren = new ArrayList<Integer>();
+			for(int i = 1; i < numSlots; i++) {
+				if(isSlotUsed(i)) {
+					pageKeys.add(keys[i]);
+					pageChildren.add(children[i]);
+				}
+			}
+			try {
+				return createCompactPageData(BufferPool.getPageSize(), parent, childCategory,
+						isSlotUsed(0) ? children[0] : 0, pageKeys, pageChildren);
+			} catch (IOException e) {
+				// insertEntry and updateEntry keep the entries within the page
+				throw new RuntimeException(e);
+			}
+		}
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -398,8 +659,8 @@ public class BTreeInternalPage extends BTreePage {
 	 * record id.
 	 * @param e - the entry with updated key and/or child pointers
 	 * @throws DbException if this entry is not on this page, entry slot is
-	 *         already empty, or updating this key would put the entry out of 
-	 *         order on the page
+	 *         already empty, updating this key would put the entry out of 
+	 *         order on the page, or a longer key does not fit on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
 		RecordId rid = e.getRecordId();
@@ -409,6 +670,15 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+
+		if(compact) {
+			Field old = keys[rid.getTupleNumber()];
+			setKey(rid.getTupleNumber(), e.getKey());
+			boolean fits = entryBytes() <= compactCapacity();
+			setKey(rid.getTupleNumber(), old);
+			if(!fits)
+				throw new DbException("updated key does not fit on the page");
+		}
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -430,7 +700,7 @@ public class BTreeInternalPage extends BTreePage {
 			}	
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
-		keys[rid.getTupleNumber()] = e.getKey();
+		setKey(rid.getTupleNumber(), e.getKey());
 	}
 
 	/**
@@ -457,10 +727,10 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
-			keys[1] = e.getKey();
+			setKey(1, e.getKey());
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
 			e.setRecordId(new RecordId(pid, 1));
@@ -479,6 +749,12 @@ public class BTreeInternalPage extends BTreePage {
 		if (emptySlot == -1)
 			throw new DbException("called insertEntry on page with no empty slots.");        
 
+		// a new key takes at most its own bytes: it shares no less of the next
+		// key than the key before it did
+		if(compact && entryBytes() + COMPACT_ENTRY_OVERHEAD +
+				((StringField) e.getKey()).getBytes().length > compactCapacity())
+			throw new DbException("called insertEntry on page with no room for the entry.");
+
 		// find the child pointer matching the left or right child in this entry
 		int lessOrEqKey = -1;
 		for (int i=0; i<numSlots; i++) {
@@ -540,7 +816,7 @@ public class BTreeInternalPage extends BTreePage {
 		// insert new entry into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
-		keys[goodSlot] = e.getKey();
+		setKey(goodSlot, e.getKey());
 		children[goodSlot] = e.getRightChild().getPageNumber();
 		e.setRecordId(new RecordId(pid, goodSlot));
 	}
@@ -553,6 +829,9 @@ public class BTreeInternalPage extends BTreePage {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
 			keys[to] = keys[from];
+			if(compact) {
+				keyBytes[to] = keyBytes[from];
+			}
 			children[to] = children[from];
 			markSlotUsed(from, false);
 		}
@@ -562,13 +841,23 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		return numSlots - getNumUnusedSlots() - 1;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a page with
+	 * variable-length keys, that is the number of keys of the maximum length
+	 * that still fit.
 	 */
 	public int getNumEmptySlots() {
+		if(compact) {
+			int free = getMaxEntries() * COMPACT_MAX_ENTRY_SIZE - entryBytes();
+			return Math.max(0, Math.min(getNumUnusedSlots(), free / COMPACT_MAX_ENTRY_SIZE));
+		}
+		return getNumUnusedSlots();
+	}
+
+	private int getNumUnusedSlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -578,6 +867,74 @@ public class BTreeInternalPage extends BTreePage {
 		return cnt;
 	}
 
+	/**
+	 * Returns the number of the last entries of this page a split should move
+	 * to the new page on its right; the first of them goes up to the parent.
+	 * That is half of the entries, or on a page with variable-length keys, as
+	 * many as leave both pages with about the same number of bytes.
+	 */
+	int getNumEntriesToSplitOff() {
+		int n = getNumEntries();
+		if(!compact || n < 3) {
+			return (n + 1) / 2;
+		}
+		ArrayList<byte[]> values = keyValues();
+		int[] sizes = entrySizes(values);
+		int[] before = new int[n + 1]; // bytes of the first i entries
+		for(int i = 0; i < n; i++) {
+			before[i + 1] = before[i] + sizes[i];
+		}
+		int best = (n + 1) / 2;
+		int bestBytes = Integer.MAX_VALUE;
+		for(int k = 2; k < n; k++) {
+			int mid = n - k;
+			int left = before[mid];
+			// the first key on the new page shares nothing with a key before it
+			int right = before[n] - before[mid + 1] + values.get(mid + 1).length - sizes[mid + 1]
+					+ COMPACT_ENTRY_OVERHEAD;
+			if(Math.max(left, right) < bestBytes) {
+				best = k;
+				bestBytes = Math.max(left, right);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the number of entries this page should give to a sibling that is
+	 * less than half full, so that both have about as many entries, or on pages
+	 * with variable-length keys, bytes.
+	 *
+	 * @param borrower - the sibling
+	 * @param fromEnd - true if the entries come from the end of this page, for
+	 * a sibling on its right, and false if they come from its start
+	 */
+	int getNumEntriesToLend(BTreeInternalPage borrower, boolean fromEnd) {
+		int n = getNumEntries();
+		if(!compact) {
+			return (n - borrower.getNumEntries()) / 2;
+		}
+		int[] sizes = entrySizes(keyValues());
+		int mine = entryBytes();
+		int theirs = borrower.entryBytes();
+		int k = 0;
+		while(k < n - 1) {
+			int size = sizes[fromEnd ? n - 1 - k : k];
+			if(theirs + size > mine - size) {
+				break;
+			}
+			theirs += size;
+			mine -= size;
+			k++;
+		}
+		return k == 0 && n > 1 ? 1 : k;
+	}
+
+	/** Returns the number of slots on this page, including the unused slot 0 for keys */
+	int getNumSlots() {
+		return numSlots;
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -599,6 +956,7 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		usedBytes = -1;
 	}
 
 	/**
@@ -741,7 +1099,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -1,13 +1,23 @@
 package simpledb;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.Random;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -17,264 +27,28 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * By default the pool is NO STEAL / FORCE: only clean pages are evicted and
+ * a commit writes every page the transaction dirtied. In STEAL / NO FORCE
+ * mode (see {@link #setStealNoForce}) a transaction may evict the pages it
+ * dirtied itself once their update records are in the log, and a commit
+ * only logs its pages; once dirty pages fill a good part of the pool, a
+ * background writer writes the pages of committed transactions. Uncommitted
+ * data that reached the disk is undone from the before-images, by the LogFile
+ * on abort and recovery, and by the pool itself for transactions that
+ * complete without a LogFile.
+ * <p>
+ * A snapshot transaction (see {@link #beginSnapshot}) is read-only and takes
+ * no page locks: it reads every page as of the last commit before it started,
+ * from the committed before-images the pool keeps anyway and the old images
+ * kept in {@link PageVersions}. Readers of snapshots never wait for writers
+ * and writers never wait for them.
  * 
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
 	
-	enum LockType {
-		SLOCK,
-		XLOCK 
-	}
-	
-	public class LockManager {
-		
-		private final int TIME_OUT = 500;
-		//private final int TIME_OUT_CNT = 1;
-		public class Locker {
-			private LockType locktype; 
-			private PageId pageId;
-			private HashSet<TransactionId> tids;
-			private TransactionId xtid;
-			public Locker(LockType locktype, PageId pageId) {
-				this.locktype = locktype;
-				this.pageId = pageId;
-				this.tids = new HashSet<TransactionId>(); 
-				this.xtid = null;
-			}
-			public Locker(LockType locktype, PageId pageId, HashSet<TransactionId> tids) {
-				this.locktype = locktype;
-				this.pageId = pageId;
-				this.tids = tids;
-				this.xtid = null;
-			}
-			
-			public Locker(LockType locktype, PageId pageId, TransactionId tid) {
-				this(locktype, pageId);
-				this.xtid = tid;
-			}
-			public Set<TransactionId> getTids() {
-				return this.tids;
-			}
-			
-			public TransactionId getxtid() {
-				return this.xtid;
-			}
-			
-			public PageId getPageId() {
-				return this.pageId;
-			}
-			
-			public void SetLockType(LockType locktype) {
-				this.locktype = locktype;
-			}
-			
-			public void remove(TransactionId tid) {
-				if(locktype == LockType.SLOCK) { 
-					assert(tids.contains(tid));
-					tids.remove(tid);
-				}
-				else {
-					assert(xtid.equals(tid));
-					xtid = null;
-				}
-			}
-			
-			public void setxtid(TransactionId tid) {
-				assert(locktype == LockType.XLOCK);
-				this.xtid = tid;
-				assert(tids.size() == 0);
-			}
-			
-			public void addholder(TransactionId tid) {
-				assert(locktype == LockType.SLOCK);
-				tids.add(tid);
-			}
-			public void updateToXlock() {
-				assert(locktype == LockType.SLOCK);
-				assert(tids.size() == 1);
-				locktype = LockType.XLOCK;
-				xtid = tids.iterator().next();
-				tids.remove(xtid);
-			}
-			public int getSRef() {
-				if(locktype == LockType.SLOCK)
-					return tids.size();
-				else 
-					return xtid == null ? 0 : 1;
-			}
-		}
-		
-		ConcurrentHashMap<PageId, Locker> lockPool;
-	    ConcurrentHashMap<TransactionId, HashSet<PageId>> tidMapToLocks; 
-	  
-	    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-	    	//we use lockPool to get locker, then check whether transaction hold this locker
-	    	/*
-	    	Locker locker = lockPool.getOrDefault(pid, null);
-	    	if(locker == null) 
-	    		return false;
-	    	if(locker.locktype == LockType.SLOCK) {
-	    		//
-	    		Set<TransactionId> tids = locker.getTids();
-	    		if(tids.contains(tid)) return true;
-	    		return false;
-	    	}
-	    	else {
-	    		return locker.xtid == tid;
-	    	}
-	    	*/
-	    	 Set<PageId> pids = this.getLockByTid(tid);
-	         return pids != null && pids.contains(pid);
-	    }
-	    
-	    public synchronized Set<PageId> getLockByTid(TransactionId tid) { 
-	    	return tidMapToLocks.getOrDefault(tid, null);
-	    }
-	    
-	    public synchronized void releasePage(TransactionId tid, PageId pid) {
-	    	//System.out.println(tid.toString() + ":" + pid.toString());
-	    	if(tidMapToLocks.containsKey(tid)) {
-	    		//HashSet<PageId> pids = tidMapToLocks.get(tid);
-	    		tidMapToLocks.get(tid).remove(pid);
-	    		//System.out.println("size is: " + pids.size());
-	    		if(tidMapToLocks.get(tid).size() == 0) {
-	    			tidMapToLocks.remove(tid);
-	    		}
-	    	}
-	    	//else System.out.println("why??");
-	    	if(lockPool.containsKey(pid)) {
-	    		//Locker locker = lockPool.get(pid);
-	    		lockPool.get(pid).remove(tid);
-	    		if(lockPool.get(pid).getSRef() == 0) {
-	    			lockPool.remove(pid);
-	    		}
-	    		else {
-	    			notifyAll();
-	    		}
-	    	}
-	    	/*
-	    	System.out.println(tid.toString() + ":" + pid.toString() + "  done  !");
-	    	if(lockPool.containsKey(pid)) {
-	    		System.out.println(tid.toString() + ":" + pid.toString() + "  undone  !");
-	    	}
-	    	
-	    	*/
-	    }
-	    
-	    public synchronized void blockRandomTime(long ranTime, long start) 
-	    		throws TransactionAbortedException {
-	    	if(System.currentTimeMillis() - start > ranTime) {
-	    		throw new TransactionAbortedException();
-	    	}
-	    	try {
-				wait(ranTime);
-				if(System.currentTimeMillis() - start > ranTime) {
-					throw new TransactionAbortedException();
-				}
-	    	} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-	    }
-	    
-	    private synchronized void addTidMapToLocks(TransactionId tid, PageId pid) {
-	    	if(tidMapToLocks.containsKey(tid)) {
-	    		if(tidMapToLocks.get(tid).contains(pid)) 
-	    			return;
-	    		tidMapToLocks.get(tid).add(pid);
-	    	}
-	    	else {
-	    		HashSet<PageId> pids = new HashSet<PageId>();
-	    		pids.add(pid);
-	    		tidMapToLocks.put(tid, pids);
-	    	}
-	    }
-	    
-	    public synchronized void acquire(TransactionId tid, PageId pid, LockType locktype) 
-	    		throws TransactionAbortedException {
-	    	Random random = new Random();
-	    	long start = System.currentTimeMillis();
-	    	long ranTime = random.nextInt(TIME_OUT) + 1;
-	    	//String printf = tid.toString() + "want" + pid.toString() + "of type: " + locktype.toString();
-	    	//System.out.println(printf);
-	    	while(true) {
-	    		if(locktype == LockType.SLOCK) {
-	    			//acquire SLock
-	    			if(holdsLock(tid, pid)) 
-	    				return;
-	    			else if(lockPool.containsKey(pid)) {
-	    				//Locker locker = lockPool.get(pid);
-	    				if(lockPool.get(pid).locktype == LockType.XLOCK) {
-	    					blockRandomTime(ranTime, start);
-	    				}
-	    				else {
-	    					lockPool.get(pid).addholder(tid);
-	    					addTidMapToLocks(tid, pid);
-	    					return;
-	    				}
-	    			}
-	    			else {
-	    				HashSet<TransactionId> tids = new HashSet<TransactionId>();
-	    				tids.add(tid);
-	    				//Locker locker = new Locker(locktype, pid, tids);
-	    				addTidMapToLocks(tid, pid);
-	    				lockPool.put(pid, new Locker(locktype, pid, tids));
-	    				return;
- 	    			}
-	    		}
-	    		
-	    		else if(locktype == LockType.XLOCK){
-	    			//acquire XLock
-	    			if(holdsLock(tid, pid)) {
-	    				//Locker locker = lockPool.get(pid);
-	    				if(lockPool.get(pid).locktype == LockType.XLOCK) 
-	    					return;
-	    				else {
-	    					if(lockPool.get(pid).getSRef() == 1) {
-	    						lockPool.get(pid).updateToXlock();
-	    						return;
-	    					}
-	    					else {
-	    						blockRandomTime(ranTime, start);
-	    					}
-	    				}
-	    			}
-	    			else if(lockPool.containsKey(pid)) {
-	    				blockRandomTime(ranTime, start);
-	    			}
-	    			else {
-	    				//Locker locker = new Locker(locktype, pid, tid);
-	    				//locker.setxtid(tid);
-	    				addTidMapToLocks(tid, pid);
-	    				lockPool.put(pid, new Locker(locktype, pid, tid));
-	    				return;
-	    			}
-	    		}
-	    	}
-	    	
-	    }
-	    public synchronized void releaseTransaction(TransactionId tid) {
-	    	if(tidMapToLocks.containsKey(tid)) {
-	    		int cnt = tidMapToLocks.get(tid).size();
-	    		PageId temp_pids[] = new PageId[cnt];
-				PageId pids[] = tidMapToLocks.get(tid).toArray(temp_pids);
-	    		for(int i = 0; i < cnt; ++i) {
-	    			this.releasePage(tid, pids[i]); 
-	    		}
-	    		
-	    		//notifyAll();
-	    	}
-	    }
-	    
-	    
-	    public LockManager() {
-	    	this.lockPool = new ConcurrentHashMap<PageId, Locker>();
-	    	this.tidMapToLocks = new ConcurrentHashMap<TransactionId, HashSet<PageId>>();
-	    }
-	}
-	
-	LockManager lockManager;
+	private final LockManager lockManager;
 	
 	/** Bytes per page, including header. */
 	private static final int DEFAULT_PAGE_SIZE = 4096;
@@ -286,8 +60,231 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
     
-    private int numPages;
-    ConcurrentHashMap<PageId, Page> buffPool;
+    /** Replacement policy used when none is given to the constructor. */
+    public static final ReplacementPolicy.Kind DEFAULT_POLICY = ReplacementPolicy.Kind.CLOCK;
+    
+    /** Smallest number of pages worth giving a partition of its own. */
+    static final int MIN_PAGES_PER_PARTITION = 16;
+    
+    /** Fraction of the pool that a sequential scan may occupy before it
+        starts recycling its own pages. */
+    static final double SCAN_RING_FRACTION = 0.125;
+    
+    /**
+     * One hash partition of the pool. A partition has its own latch (the
+     * monitor of the Partition object), page table, replacement policy and
+     * scan ring, so getPage calls for pages that hash to different partitions
+     * never wait for each other.
+     * <p>
+     * A thread holds at most one partition latch at a time, and never calls
+     * into the LogFile while holding one.
+     */
+    private static class Partition {
+    	final HashMap<PageId, Page> pages;
+    	final ReplacementPolicy policy;
+    	final int scanRingSize;
+    	/** Pages brought in by sequential scans and not touched by anybody else
+    	    since, oldest first. They are the first to go when a frame is needed. */
+    	final LinkedHashSet<PageId> scanRing;
+    	
+    	Partition(ReplacementPolicy policy, int capacity) {
+    		this.pages = new HashMap<PageId, Page>(capacity);
+    		this.policy = policy;
+    		this.scanRingSize = Math.max(1, (int) (capacity * SCAN_RING_FRACTION));
+    		this.scanRing = new LinkedHashSet<PageId>();
+    	}
+    	
+    	final ReplacementPolicy.EvictionFilter clean = new ReplacementPolicy.EvictionFilter() {
+    		public boolean canEvict(PageId pid) {
+    			Page p = pages.get(pid);
+    			return p != null && p.isDirty() == null;
+    		}
+    	};
+    	
+    	void accessed(PageId pid, boolean sequential) {
+    		if(!sequential) {
+    			scanRing.remove(pid);
+    			policy.pageAccessed(pid);
+    		}
+    		else if(!scanRing.contains(pid)) {
+    			policy.pageAccessed(pid);
+    		}
+    	}
+    	
+    	/** @return true if the page was not resident before */
+    	boolean put(Page page, boolean sequential) {
+    		PageId pid = page.getId();
+    		if(pages.put(pid, page) == null) {
+    			policy.pageLoaded(pid);
+    			if(sequential) {
+    				scanRing.add(pid);
+    			}
+    			return true;
+    		}
+    		accessed(pid, sequential);
+    		return false;
+    	}
+    	
+    	/** @return true if the page was resident */
+    	boolean remove(PageId pid) {
+    		scanRing.remove(pid);
+    		if(pages.remove(pid) != null) {
+    			policy.pageRemoved(pid);
+    			return true;
+    		}
+    		return false;
+    	}
+    	
+    	/**
+    	 * Remove a page picked to free its frame. Only a page the policy
+    	 * picked is an eviction to it; a page of the scan ring just goes.
+    	 *
+    	 * @return true if the page was resident
+    	 */
+    	boolean evict(PageId pid) {
+    		boolean scanned = scanRing.remove(pid);
+    		if(pages.remove(pid) != null) {
+    			if(scanned) {
+    				policy.pageRemoved(pid);
+    			}
+    			else {
+    				policy.pageEvicted(pid);
+    			}
+    			return true;
+    		}
+    		return false;
+    	}
+    	
+    	/**
+    	 * Pick the oldest clean page of the scan ring, as long as the ring
+    	 * holds more than keep pages.
+    	 *
+    	 * @return the victim, or null if there is none
+    	 */
+    	PageId chooseScanVictim(int keep) {
+    		if(scanRing.size() <= keep) {
+    			return null;
+    		}
+    		for(PageId pid : scanRing) {
+    			if(clean.canEvict(pid)) {
+    				return pid;
+    			}
+    		}
+    		return null;
+    	}
+    	
+    	/**
+    	 * Pick a clean page to give up. Pages left behind by sequential scans go
+    	 * before the replacement policy is asked; a scan itself only recycles
+    	 * its own pages once it has used up its share of the partition.
+    	 *
+    	 * @return the victim, or null if every page here is dirty
+    	 */
+    	PageId chooseVictim(boolean sequential) {
+    		PageId victim = chooseScanVictim(sequential ? scanRingSize - 1 : 0);
+    		if(victim != null) {
+    			return victim;
+    		}
+    		return policy.chooseVictim(clean);
+    	}
+    }
+    
+    /** Most pages a sequential scan reads ahead of itself. */
+    public static final int DEFAULT_PREFETCH_DEPTH = 4;
+    
+    /** Background threads that load pages ahead of sequential scans. */
+    private static final ExecutorService prefetcher = Executors.newFixedThreadPool(2,
+    		new ThreadFactory() {
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r, "simpledb-prefetch");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    
+    /** How often, in milliseconds, the background writer runs. */
+    static final long WRITER_INTERVAL = 100;
+    
+    /** Fraction of the pool that may be dirty before the background writer
+        starts writing committed pages back. */
+    static final double WRITER_DIRTY_FRACTION = 0.25;
+    
+    /** Most pages the background writer writes per run below that fraction,
+        see {@link #trickle}. */
+    static final int WRITER_TRICKLE_PAGES = 8;
+    
+    /** One thread writes back committed pages for every pool in STEAL mode. */
+    private static final Timer writer = new Timer("simpledb-page-writer", true);
+    
+    /**
+     * Runs the background writer for one pool. Only weakly reachable, like
+     * the deadlock detector, so a pool that was replaced can be collected.
+     */
+    private static class WriterTask extends TimerTask {
+    	private final WeakReference<BufferPool> ref;
+    	
+    	WriterTask(BufferPool pool) {
+    		this.ref = new WeakReference<BufferPool>(pool);
+    	}
+    	
+    	public void run() {
+    		BufferPool pool = ref.get();
+    		if(pool == null || pool.retired) {
+    			cancel();
+    			return;
+    		}
+    		try {
+    			if(pool.countDirtyPages() >= pool.numPages * WRITER_DIRTY_FRACTION) {
+    				pool.writeCommittedPages();
+    			}
+    			else {
+    				pool.trickle(WRITER_TRICKLE_PAGES);
+    			}
+    		} catch (IOException e) {
+    			// the pages stay dirty; try again next time
+    		} catch (RuntimeException e) {
+    			// e.g. the table is gone; must not kill the shared timer
+    		}
+    	}
+    }
+    
+    /** Runs while the pool is in STEAL / NO FORCE mode, null otherwise.
+        Guarded by the pool's monitor. */
+    private WriterTask writerTask = null;
+    
+    /** Holds the shared page locks of background writes; see
+        {@link #writeIfUnlocked}. Its monitor lets one such write run at a time. */
+    private final TransactionId writerTid = new TransactionId();
+    
+    /** Set once the database has replaced this pool; see {@link #retire}. */
+    private volatile boolean retired = false;
+
+    private final int numPages;
+    private final Partition[] partitions;
+    /** Number of pages resident in all partitions together. */
+    private final AtomicInteger numResident = new AtomicInteger(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong prefetches = new AtomicLong(0);
+    /** Pages with a prefetch queued or running. */
+    private final Set<PageId> prefetching =
+    		Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+    private volatile int prefetchDepth;
+    private volatile boolean stealNoForce = false;
+    /** Dirty pages whose current contents are already in the log, mapped to
+        the transaction that logged them: pages of committed transactions in
+        NO FORCE mode, or of a transaction that is committing. The entry is
+        stale as soon as another transaction dirties the page. */
+    private final ConcurrentHashMap<PageId, TransactionId> logged =
+    		new ConcurrentHashMap<PageId, TransactionId>();
+    /** Before-images of the pages running transactions had written to disk,
+        in STEAL mode or by a FORCE commit that is not complete yet. Until the
+        commit is installed they are the pages' committed images. */
+    private final ConcurrentHashMap<TransactionId, Map<PageId, Page>> stolen =
+    		new ConcurrentHashMap<TransactionId, Map<PageId, Page>>();
+    /** Old committed images for snapshot transactions. Commits are installed
+        under its monitor. */
+    private final PageVersions versions = new PageVersions();
     
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -295,12 +292,148 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, DEFAULT_POLICY);
+    }
+    
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts
+     * according to the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param kind the replacement policy to use
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind kind) {
+        this(numPages, kind, defaultPartitions(numPages));
+    }
+    
+    /**
+     * Creates a BufferPool that caches up to numPages pages split over the
+     * given number of hash partitions.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param kind the replacement policy each partition uses
+     * @param numPartitions number of independently latched partitions
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind kind, int numPartitions) {
         // some code goes here
     	this.numPages = numPages;
-    	buffPool = new ConcurrentHashMap<PageId, Page>(numPages);
+    	this.partitions = new Partition[Math.max(1, numPartitions)];
+    	int perPartition = (numPages + partitions.length - 1) / partitions.length;
+    	for(int i = 0; i < partitions.length; ++i) {
+    		partitions[i] = new Partition(newReplacementPolicy(kind, perPartition), perPartition);
+    	}
+    	// a small pool cannot afford to hold pages nobody asked for yet
+    	prefetchDepth = Math.min(DEFAULT_PREFETCH_DEPTH, numPages / 8);
     	lockManager = new LockManager();
     }
     
+    /**
+     * One partition per core, as long as every partition still gets
+     * MIN_PAGES_PER_PARTITION pages; small pools are not partitioned.
+     */
+    static int defaultPartitions(int numPages) {
+    	int cores = Runtime.getRuntime().availableProcessors();
+    	return Math.max(1, Math.min(cores, numPages / MIN_PAGES_PER_PARTITION));
+    }
+    
+    /**
+     * Build a replacement policy of the given kind for a pool of the given size.
+     */
+    static ReplacementPolicy newReplacementPolicy(ReplacementPolicy.Kind kind, int numPages) {
+    	switch (kind) {
+    	case LRU_K:
+    		return new LRUKReplacementPolicy(numPages);
+    	case TWO_Q:
+    		return new TwoQReplacementPolicy(numPages);
+    	case CLOCK:
+    	default:
+    		return new ClockReplacementPolicy(numPages);
+    	}
+    }
+    
+    private Partition partitionFor(PageId pid) {
+    	int h = pid.hashCode();
+    	h ^= (h >>> 16);
+    	return partitions[(h & 0x7fffffff) % partitions.length];
+    }
+    
+    /** @return the lock manager that grants this pool's page locks */
+    public LockManager getLockManager() {
+    	return lockManager;
+    }
+    
+    /** @return the number of hash partitions the pool is split into */
+    public int getNumPartitions() {
+    	return partitions.length;
+    }
+    
+    /** @return the number of pages currently cached */
+    public int getNumResidentPages() {
+    	return numResident.get();
+    }
+    
+    /** @return the number of getPage calls that found the page in the pool */
+    public long getHitCount() {
+    	return hits.get();
+    }
+    
+    /** @return the number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+    	return misses.get();
+    }
+    
+    /** @return the number of pages loaded by read-ahead */
+    public long getPrefetchCount() {
+    	return prefetches.get();
+    }
+    
+    /** Reset the hit, miss and prefetch counters, e.g. between runs of a trace. */
+    public void resetStats() {
+    	hits.set(0);
+    	misses.set(0);
+    	prefetches.set(0);
+    }
+    
+    /**
+     * Set how many pages a sequential scan reads ahead of itself; 0 turns
+     * read-ahead off.
+     */
+    public void setPrefetchDepth(int depth) {
+    	prefetchDepth = Math.max(0, depth);
+    }
+    
+    /**
+     * Switch between NO STEAL / FORCE (the default) and STEAL / NO FORCE.
+     * Meant to be set before any transaction runs: both modes rely on the
+     * update records being logged the way the mode expects. The background
+     * writer only runs in STEAL / NO FORCE mode.
+     */
+    public synchronized void setStealNoForce(boolean steal) {
+    	stealNoForce = steal;
+    	if(steal && writerTask == null && !retired) {
+    		writerTask = new WriterTask(this);
+    		writer.schedule(writerTask, WRITER_INTERVAL, WRITER_INTERVAL);
+    	}
+    	else if(!steal && writerTask != null) {
+    		writerTask.cancel();
+    		writerTask = null;
+    	}
+    }
+    
+    /** @return true if the pool runs in STEAL / NO FORCE mode */
+    public boolean isStealNoForce() {
+    	return stealNoForce;
+    }
+
+    /**
+     * Stop the background writer for good. Called when the database replaces
+     * this pool: its dirty pages may be stale copies of pages the new pool
+     * has changed since, and must never reach the disk.
+     */
+    void retire() {
+    	retired = true;
+    }
+
     public static int getPageSize() {
     	return pageSize;
     }
@@ -331,24 +464,347 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, false);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, telling
+     * the pool whether the access is part of a sequential scan.
+     * <p>
+     * Pages a sequential scan brings in are kept in a small ring: once the
+     * pool is full, the scan recycles its own frames instead of displacing
+     * the rest of the working set, and its pages are the first victims for
+     * everybody else. A page leaves the ring as soon as a non-sequential
+     * access touches it.
+     * <p>
+     * A sequential access also starts reading ahead: the pages the scan will
+     * want next are loaded in the background, see {@link #readAhead}.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param sequential true if the caller is scanning the file in order
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean sequential)
         throws TransactionAbortedException, DbException {
         // some code goes here
-    	//System.out.println(tid.toString() + "want:" + pid.toString());
-    	
-    	LockType locktype = (perm == Permissions.READ_ONLY ? 
-    			LockType.SLOCK : LockType.XLOCK);  
-    	lockManager.acquire(tid, pid, locktype);
-    	Page page = buffPool.getOrDefault(pid, null);    	
-    	if(page != null) {
+    	long snapshot = versions.snapshotOf(tid);
+    	if(snapshot >= 0) {
+    		if(perm != Permissions.READ_ONLY) {
+    			throw new DbException("snapshot transaction " + tid + " is read-only");
+    		}
+    		return snapshotPage(tid, pid, snapshot, sequential);
+    	}
+    	lockManager.acquire(tid, LockManager.table(pid.getTableId()), intention(perm));
+    	lockManager.acquire(tid, pid, pageLock(perm));
+    	Page page = fetchPage(tid, pid, sequential);
+    	if(sequential) {
+    		readAhead(page);
+    	}
+    	return page;
+    }
+
+    private static LockManager.LockType pageLock(Permissions perm) {
+    	return perm == Permissions.READ_ONLY ?
+    			LockManager.LockType.SLOCK : LockManager.LockType.XLOCK;
+    }
+
+    /** @return the lock a page lock with the given permissions needs on its table */
+    private static LockManager.LockType intention(Permissions perm) {
+    	return perm == Permissions.READ_ONLY ?
+    			LockManager.LockType.IS : LockManager.LockType.IX;
+    }
+
+    /**
+     * Retrieve a page like getPage, but only if its lock can be granted
+     * without waiting for another transaction.
+     *
+     * @return the page, or null if somebody else holds or is waiting for a
+     *         conflicting lock on it
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	if(versions.snapshotOf(tid) >= 0) {
+    		return getPage(tid, pid, perm);
+    	}
+    	lockManager.acquire(tid, LockManager.table(pid.getTableId()), intention(perm));
+    	if(!lockManager.tryAcquire(tid, pid, pageLock(perm))) {
+    		return null;
+    	}
+    	return fetchPage(tid, pid, false);
+    }
+
+    /**
+     * Lock a whole table for tid until it completes: shared for READ_ONLY,
+     * exclusive for READ_WRITE. This waits for every transaction holding
+     * page locks of the table in a conflicting mode, and from then on keeps
+     * them out at the table, so a transaction that reads or writes most of
+     * a table can take one lock instead of fighting for every page. tid
+     * still locks the pages it then reads, which never has to wait.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	if(versions.snapshotOf(tid) >= 0) {
+    		if(perm != Permissions.READ_ONLY) {
+    			throw new DbException("snapshot transaction " + tid + " is read-only");
+    		}
+    		// a snapshot reads without locks
+    		return;
+    	}
+    	lockManager.acquire(tid, LockManager.table(tableId), pageLock(perm));
+    }
+    
+    /**
+     * Start tid as a snapshot transaction: until it completes it may only
+     * read, takes no locks, and sees every page as it was committed when
+     * this is called. It does not need a BEGIN record.
+     */
+    public void beginSnapshot(TransactionId tid) {
+    	versions.begin(tid);
+    }
+    
+    /** @return the number of old page images kept for snapshots */
+    public int getNumPageVersions() {
+    	return versions.getNumVersions();
+    }
+    
+    /**
+     * Read a page the way the given snapshot sees it: an old image from the
+     * version chains, or else the page's current committed image. That is
+     * the before-image of a page a running transaction wrote to disk if
+     * there is one, and the before-image of the page in the pool otherwise.
+     * The result is a private copy or an image nobody changes.
+     */
+    private Page snapshotPage(TransactionId tid, PageId pid, long snapshot, boolean sequential)
+    		throws DbException, TransactionAbortedException {
+    	Page pg;
+    	try {
+    		pg = fetchPage(tid, pid, sequential);
+    	} catch (DbException e) {
+    		// every frame holds a page a running writer dirtied; a snapshot
+    		// only needs the committed image, so read past the pool
+    		pg = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    	}
+    	if(sequential) {
+    		readAhead(pg);
+    	}
+    	synchronized (versions) {
+    		Page old = versions.lookup(pid, snapshot);
+    		if(old != null) {
+    			return old;
+    		}
+    		for(Map<PageId, Page> written : stolen.values()) {
+    			Page before = written.get(pid);
+    			if(before != null) {
+    				return before;
+    			}
+    		}
+    		return pg.getBeforeImage();
+    	}
+    }
+    
+    /**
+     * Find the page in the pool or read it in, evicting a clean page if the
+     * pool is full. The caller holds the page lock.
+     */
+    private Page fetchPage(TransactionId tid, PageId pid, boolean sequential) throws DbException {
+    	Partition part = partitionFor(pid);
+    	while(true) {
+    		synchronized (part) {
+    			Page page = part.pages.get(pid);
+    			if(page != null) {
+    				hits.incrementAndGet();
+    				part.accessed(pid, sequential);
+    				return page;
+    			}
+    			boolean reserved = reserveFrame();
+    			boolean evicted = false;
+    			if(!reserved) {
+    				PageId victim = part.chooseVictim(sequential);
+    				if(victim != null && part.evict(victim)) {
+    					numResident.decrementAndGet();
+    					evicted = true;
+    					reserved = reserveFrame();
+    				}
+    			}
+    			if(reserved) {
+    				// reading under the partition latch keeps two threads from
+    				// loading the same page twice
+    				misses.incrementAndGet();
+    				try {
+    					DbFile df = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    					page = df.readPage(pid);
+    				} catch (RuntimeException e) {
+    					numResident.decrementAndGet();
+    					throw e;
+    				}
+    				if(page == null) {
+    					numResident.decrementAndGet();
+    					throw new DbException("BufferPool: getPage: unable to read " + pid);
+    				}
+    				part.put(page, sequential);
+    				return page;
+    			}
+    			if(evicted) {
+    				// another thread took the frame we freed; try again
+    				continue;
+    			}
+    		}
+    		// every page of this partition is dirty: free a frame elsewhere
+    		evictPage(part, tid);
+    	}
+    }
+    
+    /**
+     * Schedule background reads of the pages a sequential scan that just got
+     * page will want next: the following pages of a heap file, or the next
+     * leaves along the right-sibling chain of a B+ tree.
+     */
+    private void readAhead(Page page) {
+    	if(prefetchDepth <= 0) {
+    		return;
+    	}
+    	PageId pid = page.getId();
+    	if(pid instanceof HeapPageId) {
+    		int numpg;
+    		try {
+    			DbFile df = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    			if(!(df instanceof HeapFile)) {
+    				return;
+    			}
+    			numpg = ((HeapFile) df).numPages();
+    		} catch (NoSuchElementException e) {
+    			return;
+    		}
+    		for(int i = 1; i <= prefetchDepth; ++i) {
+    			int pgno = pid.getPageNumber() + i;
+    			if(pgno >= numpg) {
+    				break;
+    			}
+    			prefetch(new HeapPageId(pid.getTableId(), pgno), 0);
+    		}
+    	}
+    	else if(page instanceof BTreeLeafPage) {
+    		BTreePageId next = ((BTreeLeafPage) page).getRightSiblingId();
+    		if(next != null) {
+    			prefetch(next, prefetchDepth - 1);
+    		}
+    	}
+    }
+    
+    /**
+     * Load a page into the pool in the background, without taking a lock on
+     * it: the copy on disk is what any transaction would read anyway, and a
+     * page that is already cached, possibly dirty, is left alone. Prefetched
+     * pages join the scan ring. A prefetch only uses a free frame or recycles
+     * a clean page that a scan is done with; if there is none it is dropped.
+     *
+     * @param pid the page to load
+     * @param siblings for a B+ tree leaf, how many more leaves to the right
+     *        to load after it
+     */
+    public void prefetch(final PageId pid, final int siblings) {
+    	if(!prefetching.add(pid)) {
+    		return;
+    	}
+    	try {
+    		prefetcher.execute(new Runnable() {
+    			public void run() {
+    				try {
+    					Page page = loadIfAbsent(pid);
+    					if(siblings > 0 && page instanceof BTreeLeafPage) {
+    						BTreePageId next = ((BTreeLeafPage) page).getRightSiblingId();
+    						if(next != null) {
+    							prefetch(next, siblings - 1);
+    						}
+    					}
+    				} catch (RuntimeException e) {
+    					// best effort: the table may be gone, the scan will tell
+    				} finally {
+    					prefetching.remove(pid);
+    				}
+    			}
+    		});
+    	} catch (RejectedExecutionException e) {
+    		prefetching.remove(pid);
+    	}
+    }
+    
+    /**
+     * @return the page now cached, or null if there was no room for it
+     */
+    private Page loadIfAbsent(PageId pid) {
+    	Partition part = partitionFor(pid);
+    	synchronized (part) {
+    		Page page = part.pages.get(pid);
+    		if(page != null) {
+    			return page;
+    		}
+    		if(!reserveFrame()) {
+    			// keep the pages read ahead of the scan that it has not reached yet
+    			PageId victim = part.chooseScanVictim(prefetchDepth);
+    			if(victim == null || !part.evict(victim)) {
+    				return null;
+    			}
+    			numResident.decrementAndGet();
+    			if(!reserveFrame()) {
+    				return null;
+    			}
+    		}
+    		DbFile df;
+    		try {
+    			df = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    			page = df.readPage(pid);
+    		} catch (RuntimeException e) {
+    			numResident.decrementAndGet();
+    			throw e;
+    		}
+    		if(page == null) {
+    			numResident.decrementAndGet();
+    			return null;
+    		}
+    		prefetches.incrementAndGet();
+    		part.put(page, true);
     		return page;
     	}
-    	if(numPages <= buffPool.size()) {
-    		evictPage();
+    }
+    
+    /**
+     * Claim one of the numPages frames for a page about to be loaded.
+     * @return false if the pool is full
+     */
+    private boolean reserveFrame() {
+    	while(true) {
+    		int n = numResident.get();
+    		if(n >= numPages) {
+    			return false;
+    		}
+    		if(numResident.compareAndSet(n, n + 1)) {
+    			return true;
+    		}
+    	}
+    }
+    
+    /** @return the cached copy of the page, or null if it is not resident */
+    private Page lookup(PageId pid) {
+    	Partition part = partitionFor(pid);
+    	synchronized (part) {
+    		return part.pages.get(pid);
+    	}
+    }
+    
+    /**
+     * Put a page into the pool, replacing any cached version of it, and let
+     * the replacement policy know about it.
+     */
+    private void cachePage(Page page) {
+    	Partition part = partitionFor(page.getId());
+    	synchronized (part) {
+    		if(part.put(page, false)) {
+    			numResident.incrementAndGet();
+    		}
     	}
-    	DbFile df = Database.getCatalog().getDatabaseFile(pid.getTableId());
-    	page = df.readPage(pid);
-    	buffPool.put(pid, page);
-        return page;
     }
 
     /**
@@ -397,25 +853,84 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	if(versions.end(tid)) {
+    		// a snapshot has nothing to write and holds no locks
+    		return;
+    	}
     	Set<PageId> pids = lockManager.getLockByTid(tid);
-    	if(pids != null) {
+    	if(commit) {
+    		if(pids != null) {
+    			// FORCE writes the pages, NO FORCE only logs them
+    			flushPages(tid);
+    		}
+    		installCommit(tid, pids);
+    	}
+    	else if(pids != null) {
     		for(PageId pid : pids) {
-    			Page pg = buffPool.getOrDefault(pid, null);
-    			if(pg == null) continue;
-    			if(commit) {
-    				flushPage(pid);
-    				pg.setBeforeImage();
-    			}
-    			else if(pg.isDirty() != null){
+    			Page pg = lookup(pid);
+    			if(pg != null && pg.isDirty() != null) {
+    				if(stealNoForce) {
+    					// the before-image may hold committed changes that
+    					// never reached the disk (NO FORCE)
+    					writeAndReport(pg.getBeforeImage());
+    				}
     				discardPage(pid);
     			}
     		}
     	}
+    	Map<PageId, Page> undo = stolen.get(tid);
+    	if(undo != null && !commit) {
+    		// put back what the transaction had already written to disk; the
+    		// LogFile may have done so too, writing the same images again is harmless
+    		for(Page before : undo.values()) {
+    			writeAndReport(before);
+    			discardPage(before.getId());
+    		}
+    	}
+    	// only now, so that snapshots read the before-images until the disk
+    	// holds them again
+    	stolen.remove(tid);
     	lockManager.releaseTransaction(tid);  	
-    	//System.out.println(lockManager.getLockByTid(tid).size());
     	assert(lockManager.getLockByTid(tid) == null);
     }
 
+    /**
+     * Make tid's changes the committed state of its pages: their current
+     * contents become their before-images. Snapshots that started earlier
+     * keep seeing the old committed images, which go to the version chains.
+     */
+    private void installCommit(TransactionId tid, Set<PageId> pids) {
+    	synchronized (versions) {
+    		Map<PageId, Page> written = stolen.remove(tid);
+    		if(versions.hasSnapshots()) {
+    			HashMap<PageId, Page> before = new HashMap<PageId, Page>();
+    			if(written != null) {
+    				before.putAll(written);
+    			}
+    			if(pids != null) {
+    				for(PageId pid : pids) {
+    					Page pg = lookup(pid);
+    					if(pg != null && tid.equals(pg.isDirty()) && !before.containsKey(pid)) {
+    						before.put(pid, pg.getBeforeImage());
+    					}
+    				}
+    			}
+    			versions.committed(before);
+    		}
+    		else {
+    			versions.committed(Collections.<PageId, Page>emptyMap());
+    		}
+    		if(pids != null) {
+    			for(PageId pid : pids) {
+    				Page pg = lookup(pid);
+    				if(pg != null) {
+    					pg.setBeforeImage();
+    				}
+    			}
+    		}
+    	}
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other 
@@ -437,9 +952,13 @@ public class BufferPool {
         // not necessary for lab1
     	DbFile f = Database.getCatalog().getDatabaseFile(tableId);
     	ArrayList<Page> pgs = f.insertTuple(tid, t);
+    	// t now has its RecordId, which every index of the table must point at
+    	for(SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+    		pgs.addAll(index.insertTuple(tid, t));
+    	}
     	for(Page pg: pgs) {
     		pg.markDirty(true, tid);
-    		buffPool.put(pg.getId(), pg);
+    		cachePage(pg);
     	}
     }
 
@@ -463,9 +982,12 @@ public class BufferPool {
     	int tableId = t.getRecordId().getPageId().getTableId();
     	DbFile f = Database.getCatalog().getDatabaseFile(tableId);
     	ArrayList<Page> pgs = f.deleteTuple(tid, t);
+    	for(SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+    		pgs.addAll(index.deleteTuple(tid, t));
+    	}
     	for(Page pg: pgs) {
     		pg.markDirty(true, tid);
-    		buffPool.put(pg.getId(), pg);
+    		cachePage(pg);
     	}
     }
 
@@ -474,12 +996,17 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-    	Set<PageId> keys = buffPool.keySet();
-    	for(PageId key: keys) {
-    		flushPage(key);
+    	for(Partition part : partitions) {
+    		ArrayList<PageId> keys;
+    		synchronized (part) {
+    			keys = new ArrayList<PageId>(part.pages.keySet());
+    		}
+    		for(PageId key: keys) {
+    			flushPage(key);
+    		}
     	}
     }
 
@@ -490,63 +1017,310 @@ public class BufferPool {
         
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
+
+        Dropping a dirty heap page resets its free-space bit from the
+        page's committed contents.
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-    	buffPool.remove(pid);
+    	Partition part = partitionFor(pid);
+    	Page pg;
+    	synchronized (part) {
+    		pg = part.pages.get(pid);
+    		if(part.remove(pid)) {
+    			numResident.decrementAndGet();
+    		}
+    	}
+    	logged.remove(pid);
+    	if(pg instanceof HeapPage && pg.isDirty() != null) {
+    		// the uncommitted inserts and deletes no longer count
+    		try {
+    			DbFile df = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    			if(df instanceof HeapFile) {
+    				((HeapFile) df).pageDiscarded((HeapPage) pg.getBeforeImage());
+    			}
+    		} catch (NoSuchElementException e) {
+    			// the table is gone, and its map with it
+    		}
+    	}
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk.
+     * The partition latch is only held to find the page; logging and the
+     * write itself happen outside of it.
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
-    	if(!buffPool.containsKey(pid)) return;
-        Page pg = buffPool.get(pid);
-        if(pg.isDirty() != null) {
-        	int tableid = pid.getTableId();
-        	DbFile df = Database.getCatalog().getDatabaseFile(tableid);
-        	Database.getLogFile().logWrite(pg.isDirty(), pg.getBeforeImage(), pg);
-            Database.getLogFile().force();
-        	df.writePage(pg);
-        	pg.markDirty(false, null);
+        Page pg = lookup(pid);
+        if(pg == null) return;
+        TransactionId dirtier = pg.isDirty();
+        if(dirtier != null) {
+        	writeDirtyPage(pg, dirtier);
         }
     }
 
+    /**
+     * Write a dirty page to disk and mark it clean, logging it first unless
+     * its update record is already in the log. If the page belongs to a
+     * running transaction, its before-image is kept so an abort can put it
+     * back and snapshots can still read it.
+     *
+     * @param pg the page, which nobody may be changing right now
+     * @param dirtier the transaction that dirtied the page
+     */
+    private void writeDirtyPage(Page pg, TransactionId dirtier) throws IOException {
+    	PageId pid = pg.getId();
+    	if(!dirtier.equals(logged.get(pid))) {
+    		Database.getLogFile().logWrite(dirtier, pg.getBeforeImage(), pg);
+    		Database.getLogFile().force();
+    	}
+    	if(lockManager.holdsLock(dirtier, pid)) {
+    		Map<PageId, Page> undo = stolen.get(dirtier);
+    		if(undo == null) {
+    			stolen.putIfAbsent(dirtier, new ConcurrentHashMap<PageId, Page>());
+    			undo = stolen.get(dirtier);
+    		}
+    		// the first image is the one from before the transaction
+    		if(!undo.containsKey(pid)) {
+    			undo.put(pid, pg.getBeforeImage());
+    		}
+    	}
+    	writeAndReport(pg);
+    	pg.markDirty(false, null);
+    	logged.remove(pid);
+    }
+
+    /**
+     * Write a page to its file and tell the log that every change logged
+     * for it so far is on disk.
+     */
+    private void writeAndReport(Page pg) throws IOException {
+    	PageId pid = pg.getId();
+    	LogFile log = Database.getLogFile();
+    	long lsn = log.getPageLsn(pid);
+    	Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pg);
+    	log.pageWritten(pid, lsn);
+    }
+
+    /**
+     * Write an update record for a page tid dirtied, unless there is one
+     * already, and remember that the page's contents are in the log. The
+     * caller forces the log before relying on the record.
+     */
+    private void logPage(TransactionId tid, Page pg) throws IOException {
+    	if(tid.equals(pg.isDirty()) && !tid.equals(logged.get(pg.getId()))) {
+    		Database.getLogFile().logWrite(tid, pg.getBeforeImage(), pg);
+    		logged.put(pg.getId(), tid);
+    	}
+    }
+
     /** Write all pages of the specified transaction to disk.
+     * The update records of all the pages are logged first and forced
+     * together, so the transaction waits for one log sync, not one per page.
+     * In STEAL / NO FORCE mode the pages are only logged: this is what
+     * commit calls before writing the commit record.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
     	Set<PageId> pids = lockManager.getLockByTid(tid);
     	if(pids == null) return;
+    	ArrayList<Page> dirty = new ArrayList<Page>();
     	for(PageId pid : pids) {
-    		flushPage(pid);
+    		Page pg = lookup(pid);
+    		if(pg != null && tid.equals(pg.isDirty())) {
+    			logPage(tid, pg);
+    			dirty.add(pg);
+    		}
+    	}
+    	if(dirty.isEmpty()) return;
+    	Database.getLogFile().force();
+    	if(stealNoForce) return;
+    	for(Page pg : dirty) {
+    		writeDirtyPage(pg, tid);
+    	}
+    }
+
+    /** @return the number of dirty pages in the pool */
+    public int countDirtyPages() {
+    	int dirty = 0;
+    	for(Partition part : partitions) {
+    		synchronized (part) {
+    			for(Page pg : part.pages.values()) {
+    				if(pg.isDirty() != null) {
+    					dirty++;
+    				}
+    			}
+    		}
+    	}
+    	return dirty;
+    }
+
+    /**
+     * Write the dirty pages of committed transactions to disk, as the
+     * background writer does in STEAL / NO FORCE mode. Pages somebody holds
+     * a lock on are skipped.
+     *
+     * @return the number of pages written
+     */
+    public int writeCommittedPages() throws IOException {
+    	int written = 0;
+    	for(Partition part : partitions) {
+    		ArrayList<Page> dirty = new ArrayList<Page>();
+    		synchronized (part) {
+    			for(Page pg : part.pages.values()) {
+    				TransactionId dirtier = pg.isDirty();
+    				if(dirtier != null && dirtier.equals(logged.get(pg.getId()))) {
+    					dirty.add(pg);
+    				}
+    			}
+    		}
+    		for(Page pg : dirty) {
+    			if(writeIfUnlocked(pg)) {
+    				written++;
+    			}
+    		}
+    	}
+    	return written;
+    }
+
+    /**
+     * Write out committed pages that have been dirty since before the last
+     * checkpoint, oldest first. Checkpoints do not write pages, so this is
+     * what lets recovery start, and the log be truncated, at a recent one.
+     *
+     * @param max the most pages to write
+     * @return the number of pages written
+     */
+    public int trickle(int max) throws IOException {
+    	int written = 0;
+    	for(PageId pid : Database.getLogFile().getPagesBeforeCheckpoint()) {
+    		if(written >= max) {
+    			break;
+    		}
+    		Page pg = lookup(pid);
+    		if(pg != null && writeIfUnlocked(pg)) {
+    			written++;
+    		}
+    	}
+    	return written;
+    }
+
+    /**
+     * Write a committed dirty page while holding a shared lock on it, so no
+     * transaction can change it during the write.
+     *
+     * @return false if the page is locked, or no longer a committed dirty page
+     */
+    private boolean writeIfUnlocked(Page pg) throws IOException {
+    	PageId pid = pg.getId();
+    	// all these writes share one id, so one must not release a lock
+    	// another still relies on
+    	synchronized (writerTid) {
+    		if(!lockManager.tryAcquire(writerTid, pid, LockManager.LockType.SLOCK)) {
+    			return false;
+    		}
+    		try {
+    			TransactionId dirtier = pg.isDirty();
+    			if(dirtier == null || !dirtier.equals(logged.get(pid)) || lookup(pid) != pg) {
+    				return false;
+    			}
+    			writeDirtyPage(pg, dirtier);
+    			return true;
+    		} finally {
+    			lockManager.releasePage(writerTid, pid);
+    		}
     	}
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Called when the partition that needs a frame holds only dirty pages:
+     * the other partitions are asked, one latch at a time, to give up a
+     * clean page. Dirty pages are never evicted in NO STEAL mode; in STEAL
+     * mode a dirty page is written out and evicted if there is no clean one.
+     *
+     * @param home the partition that ran out of clean pages
+     * @param tid the transaction that needs the frame
      */
-    
-   
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage(Partition home, TransactionId tid) throws DbException {
         // some code goes here
         // not necessary for lab1
-    	 for (Map.Entry<PageId, Page> entry : buffPool.entrySet()) {
-             PageId pid = entry.getKey();
-             Page   p   = entry.getValue();
-             if (p.isDirty() == null) {
-                 // dont need to flushpage since all page evicted are not dirty
-                 // flushPage(pid);
-                 discardPage(pid);
-                 return;
-             }
-         }
+    	for(Partition part : partitions) {
+    		if(part == home) continue;
+    		synchronized (part) {
+    			PageId victim = part.chooseVictim(false);
+    			if(victim != null) {
+    				// dont need to flushpage since all page evicted are not dirty
+    				part.evict(victim);
+    				numResident.decrementAndGet();
+    				return;
+    			}
+    		}
+    	}
+    	if(stealNoForce) {
+    		try {
+    			if(stealPage(home, tid)) {
+    				return;
+    			}
+    			for(Partition part : partitions) {
+    				if(part != home && stealPage(part, tid)) {
+    					return;
+    				}
+    			}
+    		} catch (IOException e) {
+    			throw new DbException("BufferPool: evictPage: " + e.getMessage());
+    		}
+    	}
     	throw new DbException("BufferPool: evictPage: all pages are marked as dirty");
     }
 
+    /**
+     * Write out and evict a dirty page of the given partition. Only pages
+     * nobody else can be changing qualify: those tid dirtied itself, and
+     * those of committed transactions. The write happens outside the latch.
+     *
+     * @return true if a frame was freed
+     */
+    private boolean stealPage(final Partition part, final TransactionId tid) throws IOException {
+    	Page victim;
+    	synchronized (part) {
+    		PageId pid = part.policy.chooseVictim(new ReplacementPolicy.EvictionFilter() {
+    			public boolean canEvict(PageId pid) {
+    				Page p = part.pages.get(pid);
+    				if(p == null || p.isDirty() == null) {
+    					return false;
+    				}
+    				TransactionId dirtier = p.isDirty();
+    				return dirtier.equals(tid) || dirtier.equals(logged.get(pid));
+    			}
+    		});
+    		victim = pid == null ? null : part.pages.get(pid);
+    	}
+    	if(victim == null) {
+    		return false;
+    	}
+    	TransactionId dirtier = victim.isDirty();
+    	if(dirtier != null) {
+    		if(dirtier.equals(tid)) {
+    			writeDirtyPage(victim, dirtier);
+    		}
+    		else if(!writeIfUnlocked(victim)) {
+    			return false;
+    		}
+    	}
+    	PageId pid = victim.getId();
+    	synchronized (part) {
+    		if(part.pages.get(pid) == victim && victim.isDirty() == null && part.evict(pid)) {
+    			numResident.decrementAndGet();
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
 }
@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -45,10 +46,12 @@ public class Catalog {
 	}
 	private ConcurrentHashMap<Integer, DbTable> catalog;
 	private ConcurrentHashMap<String, Integer> nameToId;
+	private ConcurrentHashMap<Integer, List<SecondaryIndex>> indexes;
 	public Catalog() {
         // some code goes here
 		catalog = new ConcurrentHashMap<Integer, DbTable>();
 		nameToId = new ConcurrentHashMap<String, Integer>();
+		indexes = new ConcurrentHashMap<Integer, List<SecondaryIndex>>();
     }
 
     /**
@@ -82,6 +85,55 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a secondary index on a table already in the catalog. From now on
+     * BufferPool.insertTuple and deleteTuple keep it up to date. The file of
+     * the index is registered so that its pages can be read, but it is not
+     * listed as a table.
+     * @param index the index to add; then call {@link SecondaryIndex#build}
+     *    to index the tuples already in the table
+     */
+    public void addIndex(SecondaryIndex index) {
+        int tableid = index.getTableId();
+        String field = getTupleDesc(tableid).getFieldName(index.getKeyField());
+        DbFile file = index.getIndexFile();
+        catalog.put(file.getId(), new DbTable(file, getTableName(tableid) + "." + field, ""));
+        List<SecondaryIndex> list = indexes.get(tableid);
+        if(list == null) {
+            indexes.putIfAbsent(tableid, new CopyOnWriteArrayList<SecondaryIndex>());
+            list = indexes.get(tableid);
+        }
+        list.add(index);
+    }
+
+    /**
+     * Returns the secondary indexes on the specified table
+     * @param tableid The id of the table
+     * @return the indexes, empty if the table has none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> list = indexes.get(tableid);
+        if(list == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Returns a secondary index on a field of the specified table
+     * @param tableid The id of the table
+     * @param field The index of the field
+     * @return an index on the field, or null if there is none
+     */
+    public SecondaryIndex getIndex(int tableid, int field) {
+        for(SecondaryIndex index : getIndexes(tableid)) {
+            if(index.getKeyField() == field) {
+                return index;
+            }
+        }
+        return null;
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -148,6 +200,7 @@ public class Catalog {
         // some code goes here
     	catalog.clear();
     	nameToId.clear();
+    	indexes.clear();
     }
     
     /**
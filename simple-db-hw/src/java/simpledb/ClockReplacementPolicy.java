@@ -0,0 +1,97 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit in a circular array of
+ * frames, each with a reference bit that is set on every access. The clock
+ * hand sweeps the frames, clearing reference bits, and evicts the first page
+ * whose bit is already clear.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private PageId[] frames;
+    private boolean[] referenced;
+    private final HashMap<PageId, Integer> frameOf;
+    private final ArrayDeque<Integer> freeFrames;
+    private int used;
+    private int hand;
+
+    /**
+     * @param capacity the expected number of resident pages; the clock grows
+     *        if more pages than this are loaded
+     */
+    public ClockReplacementPolicy(int capacity) {
+        int n = Math.max(1, capacity);
+        this.frames = new PageId[n];
+        this.referenced = new boolean[n];
+        this.frameOf = new HashMap<PageId, Integer>(n);
+        this.freeFrames = new ArrayDeque<Integer>(n);
+        this.used = 0;
+        this.hand = 0;
+    }
+
+    public void pageLoaded(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced[frame] = true;
+            return;
+        }
+        int f;
+        if (!freeFrames.isEmpty()) {
+            f = freeFrames.pop();
+        } else {
+            if (used == frames.length) {
+                frames = Arrays.copyOf(frames, frames.length * 2);
+                referenced = Arrays.copyOf(referenced, referenced.length * 2);
+            }
+            f = used++;
+        }
+        frames[f] = pid;
+        referenced[f] = true;
+        frameOf.put(pid, f);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced[frame] = true;
+        }
+    }
+
+    public void pageEvicted(PageId pid) {
+        pageRemoved(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames[frame] = null;
+            referenced[frame] = false;
+            freeFrames.push(frame);
+        }
+    }
+
+    public PageId chooseVictim(EvictionFilter filter) {
+        if (frameOf.isEmpty()) {
+            return null;
+        }
+        // two full sweeps: the first may only clear reference bits
+        for (int step = 0; step < 2 * used + 1; ++step) {
+            if (hand >= used) {
+                hand = 0;
+            }
+            int f = hand++;
+            PageId pid = frames[f];
+            if (pid == null) {
+                continue;
+            }
+            if (referenced[f]) {
+                referenced[f] = false;
+            } else if (filter.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
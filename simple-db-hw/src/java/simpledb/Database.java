@@ -59,6 +59,7 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
+            getBufferPool().retire();
             bufferPoolF.set(_instance.get(), new BufferPool(pages));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
@@ -75,6 +76,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        getBufferPool().retire();
         _instance.set(new Database());
     }
 
@@ -0,0 +1,255 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * DbFileChannel is a DbFile's handle on its backing file. Pages are read and
+ * written with positional FileChannel calls, so there is no open, seek or
+ * close per page.
+ * <p>
+ * Channels are shared by every handle on the same path and kept in a
+ * process-wide cache of at most MAX_OPEN_FILES open files; the least
+ * recently used file is closed when the cache is full. A handle whose
+ * channel was closed that way simply reopens it. When a handle first gets
+ * its channel, the cached channel is checked against the file currently at
+ * the path, so a file that was deleted and recreated is not read through a
+ * stale descriptor. Read-only handles open their file for reading only, so
+ * a file without write permission can still be read, and share those
+ * channels only with other read-only handles.
+ *
+ * @Threadsafe
+ */
+public class DbFileChannel {
+
+    /** Maximum number of files kept open at the same time. */
+    public static final int MAX_OPEN_FILES = 128;
+
+    private static class OpenFile {
+        final FileChannel channel;
+        final Object fileKey;
+
+        OpenFile(FileChannel channel, Object fileKey) {
+            this.channel = channel;
+            this.fileKey = fileKey;
+        }
+    }
+
+    private static final LinkedHashMap<String, OpenFile> openFiles =
+        new LinkedHashMap<String, OpenFile>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, OpenFile> eldest) {
+                if (size() > MAX_OPEN_FILES) {
+                    closeQuietly(eldest.getValue().channel);
+                    return true;
+                }
+                return false;
+            }
+        };
+
+    private final File file;
+    private final boolean readOnly;
+    private volatile FileChannel channel;
+
+    /**
+     * @param file the file this handle reads and writes; it is created by
+     *        the first write if it does not exist
+     */
+    public DbFileChannel(File file) {
+        this(file, false);
+    }
+
+    /**
+     * @param file the file this handle reads, and writes unless readOnly
+     * @param readOnly true to open the file for reading only; writes then
+     *        fail
+     */
+    public DbFileChannel(File file, boolean readOnly) {
+        this.file = file;
+        this.readOnly = readOnly;
+        this.channel = null;
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            // nothing we can do, and nobody is using it any more
+        }
+    }
+
+    /** @return the identity of the file at f's path, or null if it has none */
+    private static Object fileKey(File f) {
+        try {
+            return Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get an open channel on f from the cache, opening f if it is not open
+     * or the cached channel refers to a file that is no longer at f's path.
+     *
+     * @param create whether to create f if it does not exist
+     * @param readOnly whether to get a channel that only reads; those are
+     *        cached apart from channels that also write
+     */
+    private static synchronized FileChannel acquire(File f, boolean create, boolean readOnly)
+            throws IOException {
+        String path = (readOnly ? "r:" : "rw:") + f.getAbsolutePath();
+        OpenFile open = openFiles.get(path);
+        if (open != null) {
+            if (open.channel.isOpen() && f.exists()
+                && (open.fileKey == null || open.fileKey.equals(fileKey(f)))) {
+                return open.channel;
+            }
+            openFiles.remove(path);
+            closeQuietly(open.channel);
+        }
+        FileChannel ch = readOnly
+            ? FileChannel.open(f.toPath(), StandardOpenOption.READ)
+            : create
+            ? FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+            : FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        openFiles.put(path, new OpenFile(ch, fileKey(f)));
+        return ch;
+    }
+
+    /** Close every cached channel. Handles reopen their file on next use. */
+    public static synchronized void closeAll() {
+        for (OpenFile open : openFiles.values()) {
+            closeQuietly(open.channel);
+        }
+        openFiles.clear();
+    }
+
+    /**
+     * @param create whether to create the file if it does not exist; only
+     *        writes do, so a late reader cannot bring back a deleted file
+     */
+    private FileChannel channel(boolean create) throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen()) {
+            ch = acquire(file, create, readOnly);
+            channel = ch;
+        }
+        return ch;
+    }
+
+    /**
+     * Read into buf from the given file offset until buf is full or the end
+     * of the file is reached.
+     *
+     * @return the number of bytes read, which is less than buf had room for
+     *         only if the file ended first
+     */
+    public int read(ByteBuffer buf, long position) throws IOException {
+        int start = buf.position();
+        while (true) {
+            FileChannel ch = channel(false);
+            try {
+                while (buf.hasRemaining()) {
+                    int n = ch.read(buf, position + (buf.position() - start));
+                    if (n < 0) {
+                        break;
+                    }
+                }
+                return buf.position() - start;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // the cache closed the channel under us; reopen and start over
+                buf.position(start);
+            }
+        }
+    }
+
+    /**
+     * Write all of buf at the given file offset, extending the file if needed.
+     *
+     * @throws IOException if this handle is read-only
+     */
+    public void write(ByteBuffer buf, long position) throws IOException {
+        if (readOnly) {
+            throw new IOException(file + " is open read-only");
+        }
+        int start = buf.position();
+        while (true) {
+            FileChannel ch = channel(true);
+            try {
+                while (buf.hasRemaining()) {
+                    ch.write(buf, position + (buf.position() - start));
+                }
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                buf.position(start);
+            }
+        }
+    }
+
+    /**
+     * Force the file's content to the disk. A read-only handle has nothing
+     * to force.
+     */
+    public void force() throws IOException {
+        if (readOnly) {
+            return;
+        }
+        while (true) {
+            try {
+                channel(true).force(false);
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // reopen; a sync covers the file, whichever channel wrote it
+            }
+        }
+    }
+
+    /**
+     * Map a region of the file into memory, read-only. The mapping stays
+     * valid after the channel is closed.
+     */
+    public MappedByteBuffer map(long position, long size) throws IOException {
+        while (true) {
+            try {
+                return channel(false).map(FileChannel.MapMode.READ_ONLY, position, size);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // reopen
+            }
+        }
+    }
+
+    /**
+     * @return the current size of the file in bytes
+     */
+    public long size() throws IOException {
+        while (true) {
+            try {
+                return channel(false).size();
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // reopen
+            }
+        }
+    }
+}
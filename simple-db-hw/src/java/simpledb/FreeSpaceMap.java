@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records, for every page of a HeapFile, whether the page has
+ * at least one empty slot, so that an insert can go straight to a page with
+ * room instead of reading the table from the start.
+ * <p>
+ * The map is kept in a small file next to the heap file (the data file name
+ * plus ".fsm"): an int magic number, an int page count, and then one bit
+ * per page, least significant bit first, like the HeapPage header.
+ * <p>
+ * The map is only a hint. A bit that says a page has room may be wrong (the
+ * page filled up in the meantime), so callers check the page itself and
+ * clear the bit if needed. The copy on disk is only changed when a page is
+ * written to the heap file, so it always describes the pages on disk; changes
+ * made by inserts and deletes that are not yet written only live in memory.
+ *
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    private static final int MAGIC = 0x46534d31;
+    private static final int HEADER_SIZE = 8;
+
+    private final File file;
+    private final DbFileChannel io;
+    private final BitSet free;
+    // what the map file says, which can lag behind the hints in free
+    private final BitSet onDisk;
+    private int numPages;
+
+    private FreeSpaceMap(File file, BitSet free, int numPages) {
+        this.file = file;
+        this.io = new DbFileChannel(file);
+        this.free = free;
+        this.onDisk = (BitSet) free.clone();
+        this.numPages = numPages;
+    }
+
+    /**
+     * @return the file that holds the free-space map of the given heap file
+     */
+    public static File fileFor(File dataFile) {
+        return new File(dataFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Read the map stored next to the given heap file.
+     *
+     * @param dataFile the heap file
+     * @param numPages the number of pages the heap file has now
+     * @return the map, or null if there is none or it does not describe a
+     *         file of numPages pages
+     */
+    static FreeSpaceMap load(File dataFile, int numPages) {
+        File mapFile = fileFor(dataFile);
+        if (!mapFile.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mapFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != numPages) {
+                    return null;
+                }
+                byte[] bits = new byte[(numPages + 7) / 8];
+                in.readFully(bits);
+                return new FreeSpaceMap(mapFile, BitSet.valueOf(bits), numPages);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Create a map from the given bits and write it out, replacing any map
+     * already stored next to the heap file. If the map cannot be written it
+     * is still returned; the next load will just find it missing.
+     *
+     * @param dataFile the heap file
+     * @param free bit i is set if page i has an empty slot
+     * @param numPages the number of pages the heap file has
+     */
+    static FreeSpaceMap create(File dataFile, BitSet free, int numPages) {
+        FreeSpaceMap map = new FreeSpaceMap(fileFor(dataFile), free, numPages);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(map.file)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(numPages);
+                out.write(Arrays.copyOf(free.toByteArray(), (numPages + 7) / 8));
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return map;
+    }
+
+    /**
+     * @return the number of the first page at or after from that may have an
+     *         empty slot, or -1 if there is none
+     */
+    public synchronized int nextFreePage(int from) {
+        int pgno = free.nextSetBit(from);
+        return pgno >= numPages ? -1 : pgno;
+    }
+
+    /**
+     * Record in memory whether a page has room, e.g. after an insert filled
+     * it or a delete emptied a slot.
+     */
+    public synchronized void setFree(int pgno, boolean hasRoom) {
+        free.set(pgno, hasRoom);
+    }
+
+    /**
+     * Record whether a page that was just written to the heap file has room,
+     * both in memory and in the map file.
+     */
+    synchronized void pageWritten(int pgno, boolean hasRoom) throws IOException {
+        free.set(pgno, hasRoom);
+        onDisk.set(pgno, hasRoom);
+        if (pgno >= numPages) {
+            numPages = pgno + 1;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(numPages).flip();
+            io.write(header, 0);
+        }
+        int b = 0;
+        for (int i = 0; i < 8; ++i) {
+            if (onDisk.get((pgno & ~7) + i)) {
+                b |= 1 << i;
+            }
+        }
+        io.write(ByteBuffer.wrap(new byte[] { (byte) b }), HEADER_SIZE + pgno / 8);
+    }
+}
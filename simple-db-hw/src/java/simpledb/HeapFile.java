@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.*;
 
 /**
@@ -24,10 +26,47 @@ public class HeapFile implements DbFile {
      */
 	private File f;
 	private TupleDesc td;
+	private FreeSpaceMap fsm;
+	private final DbFileChannel io;
+	private final boolean readOnly;
+	// read-only tables: the file, mapped in segments of MAP_SEGMENT_BYTES
+	private MappedByteBuffer[] segments;
+	
+	/** Most bytes of a read-only table that are mapped as one buffer. */
+	static final int MAP_SEGMENT_BYTES = 1 << 30;
+	
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally in
+     * read-only mode. A read-only heap file is memory-mapped and its pages are
+     * decoded straight from the mapping, without copying them into a byte
+     * array first. Inserts, deletes and page writes on it fail.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param td
+     *            the TupleDesc of the tuples in the file
+     * @param readOnly
+     *            true to map the file and refuse changes
+     */
+    public HeapFile(File f, TupleDesc td, boolean readOnly) {
         // some code goes here
     	this.f = f;
     	this.td = td;
+    	this.io = new DbFileChannel(f, readOnly);
+    	this.readOnly = readOnly;
+    	this.segments = new MappedByteBuffer[0];
+    }
+    
+    /**
+     * @return true if this heap file was opened read-only and is memory-mapped
+     */
+    public boolean isReadOnly() {
+    	return readOnly;
     }
 
     /**
@@ -69,38 +108,88 @@ public class HeapFile implements DbFile {
         // some code goes here
     	int tableId = pid.getTableId();
     	int pgno = pid.getPageNumber();
-    	int pgsize = Database.getBufferPool().getPageSize();
-    	byte data[] = HeapPage.createEmptyPageData();
+    	int pgsize = BufferPool.getPageSize();
     	try {
-			FileInputStream in = new FileInputStream(f);
-			try {
-				in.skip(pgno * pgsize);
-				in.read(data);
-				return new HeapPage(new HeapPageId(tableId, pgno), data);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			
-		} catch (FileNotFoundException e) {
+    		if(readOnly) {
+    			ByteBuffer mapped = mappedPage(pgno);
+    			if(mapped != null) {
+    				return new HeapPage(new HeapPageId(tableId, pgno), mapped);
+    			}
+    			return new HeapPage(new HeapPageId(tableId, pgno), HeapPage.createEmptyPageData());
+    		}
+    		byte data[] = HeapPage.createEmptyPageData();
+    		// a page past the end of the file reads as an empty page
+    		io.read(ByteBuffer.wrap(data), (long) pgno * pgsize);
+    		return new HeapPage(new HeapPageId(tableId, pgno), data);
+		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 		return null;
     }
 
+    /**
+     * Returns a read-only view of the given page of the mapped file, mapping
+     * the segment the page is in on first use.
+     * 
+     * @return the page's bytes, or null if the page is past the end of the file
+     */
+    private synchronized ByteBuffer mappedPage(int pgno) throws IOException {
+    	int pgsize = BufferPool.getPageSize();
+    	int pagesPerSegment = MAP_SEGMENT_BYTES / pgsize;
+    	int seg = pgno / pagesPerSegment;
+    	if(seg >= segments.length) {
+    		segments = Arrays.copyOf(segments, seg + 1);
+    	}
+    	if(segments[seg] == null) {
+    		long start = (long) seg * pagesPerSegment * pgsize;
+    		long len = Math.min((long) pagesPerSegment * pgsize, io.size() - start);
+    		if(len <= 0) {
+    			return null;
+    		}
+    		segments[seg] = io.map(start, len);
+    	}
+    	int off = (pgno % pagesPerSegment) * pgsize;
+    	if(off + pgsize > segments[seg].capacity()) {
+    		return null;
+    	}
+    	ByteBuffer page = segments[seg].asReadOnlyBuffer();
+    	page.position(off);
+    	page.limit(off + pgsize);
+    	return page.slice();
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
+    	if(readOnly) {
+    		throw new IOException("HeapFile: " + f + " is read-only");
+    	}
     	PageId pid = page.getId();
-    	int tableId = pid.getTableId();
     	int pgno = pid.getPageNumber();
-    	int pgsize = Database.getBufferPool().getPageSize();
+    	int pgsize = BufferPool.getPageSize();
     	byte[] data = page.getPageData();
-    	RandomAccessFile out = new  RandomAccessFile(f, "rws");
-    	out.skipBytes(pgno * pgsize);
-    	out.write(data);   	
+    	io.write(ByteBuffer.wrap(data), (long) pgno * pgsize);
+    	// the page must be on disk when we return, as with the old "rws" mode
+    	io.force();
+    	if(page instanceof HeapPage) {
+    		getFreeSpaceMap().pageWritten(pgno, ((HeapPage) page).getNumEmptySlots() > 0);
+    	}
+    }
+
+    /**
+     * Called by the BufferPool when it drops a page tid dirtied without
+     * writing it, as on abort. The changes that moved the page's free-space
+     * bit are gone, so the bit is set again from the committed contents.
+     *
+     * @param committed the page as of the last commit
+     */
+    void pageDiscarded(HeapPage committed) {
+    	if(!readOnly) {
+    		getFreeSpaceMap().setFree(committed.getId().getPageNumber(),
+    				committed.getNumEmptySlots() > 0);
+    	}
     }
 
     /**
@@ -112,25 +201,73 @@ public class HeapFile implements DbFile {
     	return (int) (f.length() / (Database.getBufferPool().getPageSize()));
     }
 
+    /**
+     * Returns the free-space map of this file, reading it from disk on first
+     * use. If there is no map, or it does not match the file, it is rebuilt
+     * by reading every page once.
+     */
+    synchronized FreeSpaceMap getFreeSpaceMap() {
+    	if(fsm == null) {
+    		int numpg = numPages();
+    		fsm = FreeSpaceMap.load(f, numpg);
+    		if(fsm == null) {
+    			BitSet free = new BitSet(numpg);
+    			try {
+    				int pgsize = BufferPool.getPageSize();
+    				byte data[] = new byte[pgsize];
+    				for(int i = 0; i < numpg; ++i) {
+    					io.read(ByteBuffer.wrap(data), (long) i * pgsize);
+    					HeapPage pg = new HeapPage(new HeapPageId(getId(), i), data);
+    					free.set(i, pg.getNumEmptySlots() > 0);
+    				}
+    			} catch (IOException e) {
+    				// pages we could not read are treated as full
+    				e.printStackTrace();
+    			}
+    			fsm = FreeSpaceMap.create(f, free, numpg);
+    		}
+    	}
+    	return fsm;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        int numpg = numPages();
-        
+    	if(readOnly) {
+    		throw new DbException("error on insertTuple: table is read-only");
+    	}
+        // only pages the free-space map says have room are locked and read
+        FreeSpaceMap map = getFreeSpaceMap();
         ArrayList<Page> ret = new ArrayList<Page>(1);
-        for(int i = 0; i < numpg; ++i) {
-        	HeapPageId pid = new HeapPageId(getId(), i);
-        	HeapPage pg = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-        	if(pg.getNumEmptySlots() > 0) {
-        		pg.insertTuple(t);
-        		ret.add(pg);
-        		pg.markDirty(true, tid);
-        		//writePage(pg);
-        		return ret;
+        // the first pass skips pages other transactions have locked, so that
+        // concurrent inserters spread over the free pages instead of
+        // queueing for the first one; the second pass waits
+        BufferPool bp = Database.getBufferPool();
+        for(int pass = 0; pass < 2; ++pass) {
+        	int pgno = map.nextFreePage(0);
+        	while(pgno >= 0) {
+        		HeapPageId pid = new HeapPageId(getId(), pgno);
+        		HeapPage pg = (HeapPage) (pass == 0
+        				? bp.tryGetPage(tid, pid, Permissions.READ_WRITE)
+        				: bp.getPage(tid, pid, Permissions.READ_WRITE));
+        		if(pg != null) {
+        			if(pg.getNumEmptySlots() > 0) {
+        				pg.insertTuple(t);
+        				ret.add(pg);
+        				pg.markDirty(true, tid);
+        				if(pg.getNumEmptySlots() == 0) {
+        					map.setFree(pgno, false);
+        				}
+        				return ret;
+        			}
+        			// somebody filled the page since the map was last updated
+        			map.setFree(pgno, false);
+        		}
+        		pgno = map.nextFreePage(pgno + 1);
         	}
         }
-        HeapPageId pid = new HeapPageId(getId(), numpg);
+        HeapPageId pid = new HeapPageId(getId(), numPages());
         HeapPage newpg = new HeapPage(pid, HeapPage.createEmptyPageData());
         if(newpg.getNumEmptySlots() > 0) {
     		newpg.insertTuple(t);
@@ -148,6 +285,9 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
+    	if(readOnly) {
+    		throw new DbException("error on deleteTuple: table is read-only");
+    	}
     	RecordId rid = t.getRecordId();
     	PageId pid = rid.getPageId();
     	if(pid.getTableId() != getId()) {
@@ -157,12 +297,18 @@ public class HeapFile implements DbFile {
     			.getPage(tid, pid, Permissions.READ_WRITE);
     	pg.deleteTuple(t);
     	pg.markDirty(true, tid);
+    	getFreeSpaceMap().setFree(pid.getPageNumber(), true);
         ArrayList<Page> ret = new ArrayList<Page>(1);
         ret.add(pg);
         return ret;
         // not necessary for lab1
     }
 
+    /**
+     * Iterator over every tuple of the file, page by page. Pages are read in
+     * file order, so they are requested from the BufferPool as a sequential
+     * scan and do not displace the rest of the pool.
+     */
     public class HeapFileIterator implements DbFileIterator {
     	private TransactionId tid;
     	private int curPgNo;
@@ -205,7 +351,7 @@ public class HeapFile implements DbFile {
     		PageId pid = new HeapPageId(tableId, curPgNo);
     		return ((HeapPage) Database
     				.getBufferPool()
-    				.getPage(tid, pid, Permissions.READ_ONLY))
+    				.getPage(tid, pid, Permissions.READ_ONLY, true))
     				.iterator();
     	}
     	
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -16,10 +17,20 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
-    final Tuple tuples[];
     final int numSlots;
+    // the page as it was read, never written to; slot i starts at
+    // header.length + i * td.getSize()
+    private final ByteBuffer raw;
+    // byte offset of every field within a tuple
+    private final int fieldOffsets[];
+    // tuples inserted since the page was read, by slot; a used slot with no
+    // entry here is decoded from raw when it is asked for
+    private Tuple tuples[];
 
     byte[] oldData;
+    // until the before image is first set, it is just raw; it is only copied
+    // into oldData when it is asked for
+    private ByteBuffer oldSource;
     private final Byte oldDataLock=new Byte((byte)0);
 
     private boolean dirty;
@@ -41,27 +52,45 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from the bytes of a page that start at the current
+     * position of the given buffer, e.g. a slice of a memory-mapped file.
+     * The buffer's position is not changed.
+     * <p>
+     * Only the header is read here. The page keeps the bytes and decodes a
+     * tuple, or a single field, when it is asked for, so the bytes must not
+     * change afterwards. The before image is the same bytes, and is only
+     * copied if it is asked for.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        ByteBuffer buf = data.duplicate();
+        if (buf.remaining() < BufferPool.getPageSize()) {
+            throw new IOException("HeapPage: short page " + id);
+        }
+        buf.limit(buf.position() + BufferPool.getPageSize());
+        this.raw = buf.slice();
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        raw.duplicate().get(header);
+
+        fieldOffsets = new int[td.numFields()];
+        int off = 0;
+        for (int j=0; j<fieldOffsets.length; j++) {
+            fieldOffsets[j] = off;
+            off += td.getFieldType(j).getLen();
         }
-        dis.close();
 
-        setBeforeImage();
+        tuples = null;
+        oldSource = raw;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -91,6 +120,11 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
+                if (oldData == null) {
+                    oldData = new byte[oldSource.remaining()];
+                    oldSource.duplicate().get(oldData);
+                    oldSource = null;
+                }
                 oldDataRef = oldData;
             }
             return new HeapPage(pid,oldDataRef);
@@ -106,6 +140,7 @@ public class HeapPage implements Page {
         synchronized(oldDataLock)
         {
         oldData = getPageData().clone();
+        oldSource = null;
         }
     }
 
@@ -117,30 +152,24 @@ public class HeapPage implements Page {
     	return pid;
     }
 
+    /** @return the offset in raw of the given field of the given slot */
+    private int offsetOf(int slotId, int field) {
+        return header.length + slotId * td.getSize() + fieldOffsets[field];
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Decode a tuple from the bytes the page was read from.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
         // read fields in the tuple
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
+        ByteBuffer buf = raw.duplicate();
+        buf.position(offsetOf(slotId, 0));
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                Field f = td.getFieldType(j).parse(buf);
                 t.setField(j, f);
             }
         } catch (java.text.ParseException e) {
@@ -151,6 +180,71 @@ public class HeapPage implements Page {
         return t;
     }
 
+    /**
+     * Returns the tuple in the given slot, decoding it if needed.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    public Tuple getTuple(int slotId) {
+        if (!isSlotUsed(slotId)) {
+            return null;
+        }
+        return storedTuple(slotId);
+    }
+
+    /** @return whatever tuple the slot holds, whether it is in use or not */
+    private Tuple storedTuple(int slotId) {
+        Tuple[] inserted = tuples;
+        if (inserted != null && inserted[slotId] != null) {
+            return inserted[slotId];
+        }
+        return readTuple(slotId);
+    }
+
+    /**
+     * Returns one field of the tuple in the given slot without decoding the
+     * rest of the tuple.
+     *
+     * @throws NoSuchElementException if the slot is empty
+     */
+    public Field getField(int slotId, int field) {
+        if (!isSlotUsed(slotId)) {
+            throw new NoSuchElementException("slot " + slotId + " is empty");
+        }
+        Tuple[] inserted = tuples;
+        if (inserted != null && inserted[slotId] != null) {
+            return inserted[slotId].getField(field);
+        }
+        ByteBuffer buf = raw.duplicate();
+        buf.position(offsetOf(slotId, field));
+        try {
+            return td.getFieldType(field).parse(buf);
+        } catch (java.text.ParseException e) {
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    /**
+     * Returns an integer field of the tuple in the given slot, read straight
+     * from the page without creating any objects.
+     *
+     * @throws NoSuchElementException if the slot is empty
+     * @throws IllegalArgumentException if the field is not an INT_TYPE
+     */
+    public int getInt(int slotId, int field) {
+        if (td.getFieldType(field) != Type.INT_TYPE) {
+            throw new IllegalArgumentException("field " + field + " is not an int");
+        }
+        if (!isSlotUsed(slotId)) {
+            throw new NoSuchElementException("slot " + slotId + " is empty");
+        }
+        Tuple[] inserted = tuples;
+        if (inserted != null && inserted[slotId] != null) {
+            return ((IntField) inserted[slotId].getField(field)).getValue();
+        }
+        return raw.getInt(offsetOf(slotId, field));
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -164,63 +258,41 @@ public class HeapPage implements Page {
      */
     public byte[] getPageData() {
         int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+        byte[] data = new byte[len];
+        System.arraycopy(header, 0, data, 0, header.length);
+
+        // slots that were not touched since the page was read are copied as
+        // they are; inserted tuples are serialized
+        int tupleSize = td.getSize();
+        Tuple[] inserted = tuples;
+        ByteBuffer src = raw.duplicate();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
         DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
+        for (int i=0; i<numSlots; i++) {
+            // empty slots stay 0
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
                 continue;
             }
-
-            // non-empty slot
+            int off = header.length + i * tupleSize;
+            if (inserted == null || inserted[i] == null) {
+                src.position(off);
+                src.get(data, off, tupleSize);
+                continue;
+            }
+            baos.reset();
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = inserted[i].getField(j);
                 try {
                     f.serialize(dos);
-                
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
+            System.arraycopy(baos.toByteArray(), 0, data, off, tupleSize);
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        // the padding after the last slot stays 0
+        return data;
     }
 
     /**
@@ -276,6 +348,9 @@ public class HeapPage implements Page {
     			markSlotUsed(i, true);
     			RecordId rid = new RecordId(pid, i);
     			t.setRecordId(rid);
+    			if(tuples == null) {
+    				tuples = new Tuple[numSlots];
+    			}
     			tuples[i] = t;
     			return;
     		}
@@ -344,21 +419,26 @@ public class HeapPage implements Page {
     	}
     }
     
-	public class TupleIterator implements Iterator {
-    	private Iterator<Tuple> iter;
-    	private ArrayList<Tuple> tps = new ArrayList<Tuple>(numSlots - getNumEmptySlots());
-    	public TupleIterator() {
-    		for(int i = 0; i < tuples.length; ++i) {
-    			if(isSlotUsed(i)) {
-    				tps.add(tuples[i]);
+	/**
+	 * Iterates over the slots that were in use when the iterator was
+	 * created, decoding each tuple only when next() reaches it.
+	 */
+	public class TupleIterator implements Iterator<Tuple> {
+    	private final byte[] used = header.clone();
+    	private int slot = nextUsed(0);
+    	
+    	private int nextUsed(int from) {
+    		for(int i = from; i < numSlots; ++i) {
+    			if((used[i/8] & (1 << (i % 8))) != 0) {
+    				return i;
     			}
     		}
-    		iter = tps.iterator();
+    		return numSlots;
     	}
     	
     	@Override
     	public boolean hasNext() {
-    		return iter.hasNext();
+    		return slot < numSlots;
     	}
     	 
     	@Override
@@ -367,8 +447,14 @@ public class HeapPage implements Page {
     	}
     	
     	@Override
-    	public Object next() {
-    		return iter.next();
+    	public Tuple next() {
+    		if(!hasNext()) {
+    			throw new NoSuchElementException();
+    		}
+    		int cur = slot;
+    		slot = nextUsed(cur + 1);
+    		// a tuple deleted since the iterator was created is still returned
+    		return storedTuple(cur);
     	}
     	
     }
@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan is an access method that reads the tuples of a HeapFile whose
+ * indexed field satisfies a predicate, by looking them up in a
+ * {@link SecondaryIndex} instead of reading the whole table. It returns
+ * the same tuples, with the same TupleDesc, as a filtered SeqScan, so it
+ * can take a SeqScan's place in a plan.
+ */
+public class IndexScan extends SeqScan implements IndexOpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private IndexPredicate ipred;
+	private transient DbFileIterator it;
+
+	/**
+	 * Creates an index scan over the table of the specified index as a part
+	 * of the specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to read.
+	 * @param tableAlias
+	 *            the alias of the table, as for {@link SeqScan}.
+	 * @param ipred
+	 *            The index predicate to match; open(IndexPredicate) can
+	 *            replace it.
+	 */
+	public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+			IndexPredicate ipred) {
+		super(tid, index.getTableId(), tableAlias);
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+	}
+
+	public IndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred) {
+		this(tid, index, Database.getCatalog().getTableName(index.getTableId()), ipred);
+	}
+
+	/**
+	 * @return the index this scan reads
+	 */
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (it != null)
+			throw new DbException("double open on one OpIterator.");
+		it = index.indexIterator(tid, ipred);
+		it.open();
+	}
+
+	public void open(IndexPredicate ipred)
+			throws NoSuchElementException, DbException, TransactionAbortedException {
+		this.ipred = ipred;
+		open();
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (it == null)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+			TransactionAbortedException, DbException {
+		if (it == null)
+			throw new IllegalStateException("iterator is closed");
+		return it.next();
+	}
+
+	public void close() {
+		if (it != null) {
+			it.close();
+			it = null;
+		}
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+			TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void rewind(IndexPredicate ipred)
+			throws DbException, TransactionAbortedException {
+		close();
+		open(ipred);
+	}
+}
@@ -241,6 +241,8 @@ public class JoinOptimizer {
         //Replace the following
     	PlanCache pc = new PlanCache();
     	int cnt = joins.size();
+    	// a query over a single table has nothing to order
+    	if(cnt == 0) return joins;
     	for(int size = 1; size <= cnt; ++size) {
     		Set<Set<LogicalJoinNode>> S = enumerateSubsets(joins, size);  
     		for(Set<LogicalJoinNode> s : S) {
@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Each page remembers the
+ * logical times of its last K references; the victim is the page whose K-th
+ * most recent reference is oldest. Pages referenced fewer than K times have
+ * an infinite backward K-distance and go first, oldest last reference first,
+ * so a page touched once by a scan never outlives a page that is used over
+ * and over.
+ * <p>
+ * Reference history is retained for a bounded number of recently evicted
+ * pages so a page that comes straight back is not treated as brand new.
+ */
+public class LRUKReplacementPolicy implements ReplacementPolicy {
+
+    /** Default number of references tracked per page. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private long clock;
+    private final HashMap<PageId, long[]> resident;
+    private final LinkedHashMap<PageId, long[]> retained;
+
+    /**
+     * @param capacity the number of pages in the buffer pool, also used as the
+     *        number of evicted pages whose history is retained
+     */
+    public LRUKReplacementPolicy(int capacity) {
+        this(capacity, DEFAULT_K);
+    }
+
+    /**
+     * @param capacity the number of pages in the buffer pool
+     * @param k the number of references tracked per page
+     */
+    public LRUKReplacementPolicy(final int capacity, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("LRU-K needs k >= 1");
+        }
+        this.k = k;
+        this.clock = 0;
+        this.resident = new HashMap<PageId, long[]>(Math.max(1, capacity));
+        this.retained = new LinkedHashMap<PageId, long[]>(16, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, long[]> eldest) {
+                return size() > Math.max(1, capacity);
+            }
+        };
+    }
+
+    // history[0] is the most recent reference, history[k-1] the K-th most
+    // recent; 0 means "no such reference"
+    private void reference(long[] history) {
+        System.arraycopy(history, 0, history, 1, k - 1);
+        history[0] = ++clock;
+    }
+
+    public void pageLoaded(PageId pid) {
+        long[] history = resident.get(pid);
+        if (history == null) {
+            history = retained.remove(pid);
+            if (history == null) {
+                history = new long[k];
+            }
+            resident.put(pid, history);
+        }
+        reference(history);
+    }
+
+    public void pageAccessed(PageId pid) {
+        long[] history = resident.get(pid);
+        if (history != null) {
+            reference(history);
+        }
+    }
+
+    public void pageEvicted(PageId pid) {
+        long[] history = resident.remove(pid);
+        if (history != null) {
+            retained.put(pid, history);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        resident.remove(pid);
+    }
+
+    public PageId chooseVictim(EvictionFilter filter) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        for (Map.Entry<PageId, long[]> e : resident.entrySet()) {
+            long[] history = e.getValue();
+            long kth = history[k - 1];
+            long last = history[0];
+            // smaller K-th reference time means larger backward K-distance;
+            // ties (in particular kth == 0, infinite distance) break on LRU
+            if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+                if (filter.canEvict(e.getKey())) {
+                    victim = e.getKey();
+                    victimKth = kth;
+                    victimLast = last;
+                }
+            }
+        }
+        return victim;
+    }
+}
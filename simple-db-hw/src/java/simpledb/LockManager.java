@@ -0,0 +1,611 @@
+package simpledb;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockManager hands out locks on tables and pages to transactions.
+ * <p>
+ * Locks are hierarchical: a transaction that locks a page first takes an
+ * intention lock on its table, IS before a shared and IX before an
+ * exclusive page lock. Intention locks are compatible with each other, so
+ * transactions working on different pages of a table do not get in each
+ * other's way, while a shared or exclusive lock on the whole table (see
+ * {@link BufferPool#lockTable}) waits for, and then keeps out, everybody
+ * locking pages of the table in a conflicting mode. Asking for a mode that
+ * does not cover the one already held converts the lock to the weakest mode
+ * covering both, e.g. S and IX become SIX.
+ * <p>
+ * Every table or page with a lock on it has a queue: the transactions
+ * currently holding the lock and, behind them, the requests that could not
+ * be granted yet, in arrival order. A request is granted as soon as it is compatible
+ * with the holders and nobody is queued ahead of it, so a stream of readers
+ * cannot starve a writer. Lock upgrades go to the front of the queue. Each
+ * waiting request is woken individually when it is granted; releasing a lock
+ * never wakes threads that still cannot proceed.
+ * <p>
+ * The queues are spread over NUM_STRIPES stripes by the hash of the locked
+ * table or page, and each stripe has its own monitor, so transactions
+ * locking different pages do not serialize on one lock table. A request
+ * only ever holds the monitor of its resource's stripe.
+ * <p>
+ * Waiting requests never time out. Deadlocks are found by a background
+ * detector that periodically builds the waits-for graph and, for every
+ * cycle, aborts the youngest transaction in it (the one with the largest
+ * id). The victim's waiting getPage call throws a
+ * TransactionAbortedException. The detector holds every stripe while it
+ * looks, so the graph is a consistent snapshot.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Lock modes: intention shared and exclusive, shared, both, exclusive. */
+    enum LockType {
+        IS,
+        IX,
+        SLOCK,
+        SIX,
+        XLOCK;
+
+        // COMPATIBLE[a][b] is true if a and b can be held together
+        private static final boolean[][] COMPATIBLE = {
+            // IS     IX     S      SIX    X
+            { true,  true,  true,  true,  false }, // IS
+            { true,  true,  false, false, false }, // IX
+            { true,  false, true,  false, false }, // S
+            { true,  false, false, false, false }, // SIX
+            { false, false, false, false, false }, // X
+        };
+
+        /** @return true if another transaction may hold other alongside this */
+        boolean compatibleWith(LockType other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return true if holding this lock grants everything other does */
+        boolean covers(LockType other) {
+            return this == other || this == XLOCK || other == IS
+                || (this == SIX && other != XLOCK);
+        }
+
+        /** @return the weakest mode that covers both this and other */
+        LockType join(LockType other) {
+            if (covers(other)) {
+                return this;
+            }
+            if (other.covers(this)) {
+                return other;
+            }
+            // S and IX, the only pair where neither covers the other
+            return SIX;
+        }
+    }
+
+    /** The resource locked for a whole table. */
+    private static final class TableResource {
+        final int tableId;
+
+        TableResource(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableResource && ((TableResource) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId;
+        }
+
+        @Override
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    /** @return the resource to lock for the table with the given id */
+    static Object table(int tableId) {
+        return new TableResource(tableId);
+    }
+
+    /** Number of lock table stripes; a power of two. */
+    static final int NUM_STRIPES = 64;
+
+    /** How often, in milliseconds, the deadlock detector runs. */
+    static final long DETECT_INTERVAL = 50;
+
+    /** One thread checks every lock manager for deadlocks. */
+    private static final Timer detector = new Timer("simpledb-deadlock-detector", true);
+
+    /**
+     * A request that is waiting in a resource's queue. The waiting thread waits
+     * on the request object itself, so it can be woken alone.
+     */
+    private static class Request {
+        final TransactionId tid;
+        final LockType locktype;
+        final boolean upgrade;
+        boolean granted;
+        boolean aborted;
+
+        Request(TransactionId tid, LockType locktype, boolean upgrade) {
+            this.tid = tid;
+            this.locktype = locktype;
+            this.upgrade = upgrade;
+        }
+    }
+
+    /** Holders and waiters of the lock on one table or page. */
+    private static class LockQueue {
+        final LinkedHashMap<TransactionId, LockType> holders =
+            new LinkedHashMap<TransactionId, LockType>();
+        final LinkedList<Request> waiters = new LinkedList<Request>();
+
+        boolean isFree() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
+
+        /** @return true if req could be granted given the current holders */
+        boolean compatible(Request req) {
+            for (Map.Entry<TransactionId, LockType> h : holders.entrySet()) {
+                if (!h.getKey().equals(req.tid) && !req.locktype.compatibleWith(h.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Runs the detector for one lock manager. Only weakly reachable so a
+     * lock manager that was replaced (e.g. by Database.resetBufferPool) can
+     * be collected; the task then cancels itself.
+     */
+    private static class DetectorTask extends TimerTask {
+        private final WeakReference<LockManager> ref;
+
+        DetectorTask(LockManager lm) {
+            this.ref = new WeakReference<LockManager>(lm);
+        }
+
+        public void run() {
+            LockManager lm = ref.get();
+            if (lm == null) {
+                cancel();
+                return;
+            }
+            lm.detectDeadlocks();
+        }
+    }
+
+    /** The queues of the resources that hash to one stripe. */
+    private static class Stripe {
+        final HashMap<Object, LockQueue> queues = new HashMap<Object, LockQueue>();
+    }
+
+    private final Stripe[] stripes;
+    /** The resources each transaction holds a lock on. A transaction's set
+        only changes under the monitor of the stripe of the resource added
+        or removed, and is dropped when the transaction releases its locks. */
+    private final ConcurrentHashMap<TransactionId, Set<Object>> tidMapToLocks;
+    private final AtomicInteger numWaiting = new AtomicInteger(0);
+
+    private final AtomicLong lockWaits = new AtomicLong(0);
+    private final AtomicLong lockWaitNanos = new AtomicLong(0);
+    private final AtomicLong deadlockVictims = new AtomicLong(0);
+
+    public LockManager() {
+        this.stripes = new Stripe[NUM_STRIPES];
+        for (int i = 0; i < stripes.length; ++i) {
+            stripes[i] = new Stripe();
+        }
+        this.tidMapToLocks = new ConcurrentHashMap<TransactionId, Set<Object>>();
+        detector.schedule(new DetectorTask(this), DETECT_INTERVAL, DETECT_INTERVAL);
+    }
+
+    /** @return the stripe whose monitor guards the queue of res */
+    private Stripe stripeFor(Object res) {
+        int h = res.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    /** Return true if the specified transaction has a lock on the specified page */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<Object> held = tidMapToLocks.get(tid);
+        return held != null && held.contains(pid);
+    }
+
+    /**
+     * @return a copy of the set of pages tid holds a lock on, or null if it
+     *         holds none
+     */
+    public Set<PageId> getLockByTid(TransactionId tid) {
+        Set<Object> held = tidMapToLocks.get(tid);
+        if (held == null || held.isEmpty()) {
+            return null;
+        }
+        HashSet<PageId> pids = new HashSet<PageId>();
+        for (Object res : held) {
+            if (res instanceof PageId) {
+                pids.add((PageId) res);
+            }
+        }
+        return pids;
+    }
+
+    /**
+     * Acquire a lock on res, a page id or a {@link #table}, for tid,
+     * blocking until it is granted. If tid already holds a lock on res that
+     * does not cover locktype, the lock is converted.
+     *
+     * @throws TransactionAbortedException if tid was chosen as the victim of
+     *         a deadlock while waiting
+     */
+    public void acquire(TransactionId tid, Object res, LockType locktype)
+        throws TransactionAbortedException {
+        Request req;
+        Stripe stripe = stripeFor(res);
+        synchronized (stripe) {
+            LockQueue q = stripe.queues.get(res);
+            if (q == null) {
+                q = new LockQueue();
+                stripe.queues.put(res, q);
+            }
+            LockType held = q.holders.get(tid);
+            if (held != null && held.covers(locktype)) {
+                return;
+            }
+            boolean upgrade = held != null;
+            req = new Request(tid, upgrade ? held.join(locktype) : locktype, upgrade);
+            if (upgrade) {
+                if (q.compatible(req)) {
+                    q.holders.put(tid, req.locktype);
+                    return;
+                }
+                // an upgrade goes ahead of everybody who does not hold the lock
+                ListIterator<Request> it = q.waiters.listIterator();
+                while (it.hasNext()) {
+                    if (!it.next().upgrade) {
+                        it.previous();
+                        break;
+                    }
+                }
+                it.add(req);
+            } else {
+                if (q.waiters.isEmpty() && q.compatible(req)) {
+                    grant(q, res, req);
+                    return;
+                }
+                q.waiters.addLast(req);
+            }
+            numWaiting.incrementAndGet();
+        }
+
+        lockWaits.incrementAndGet();
+        long start = System.nanoTime();
+        boolean done = false;
+        try {
+            synchronized (req) {
+                while (!req.granted && !req.aborted) {
+                    try {
+                        req.wait();
+                    } catch (InterruptedException e) {
+                        throw new TransactionAbortedException();
+                    }
+                }
+                if (req.aborted) {
+                    throw new TransactionAbortedException();
+                }
+                done = true;
+            }
+        } finally {
+            lockWaitNanos.addAndGet(System.nanoTime() - start);
+            if (!done) {
+                cancel(res, req);
+            }
+        }
+    }
+
+    /**
+     * Acquire a lock on res for tid only if that can be done without
+     * waiting, i.e. nobody holds a conflicting lock or is queued.
+     *
+     * @return true if tid now holds the lock
+     */
+    public boolean tryAcquire(TransactionId tid, Object res, LockType locktype) {
+        Stripe stripe = stripeFor(res);
+        synchronized (stripe) {
+            LockQueue q = stripe.queues.get(res);
+            if (q == null) {
+                q = new LockQueue();
+                stripe.queues.put(res, q);
+            }
+            LockType held = q.holders.get(tid);
+            if (held != null && held.covers(locktype)) {
+                return true;
+            }
+            Request req = new Request(tid, held == null ? locktype : held.join(locktype), held != null);
+            if (!q.waiters.isEmpty() || !q.compatible(req)) {
+                if (q.isFree()) {
+                    stripe.queues.remove(res);
+                }
+                return false;
+            }
+            grant(q, res, req);
+            return true;
+        }
+    }
+
+    /** Make req's transaction a holder of the lock on res. Caller holds
+        the monitor of res's stripe. */
+    private void grant(LockQueue q, Object res, Request req) {
+        q.holders.put(req.tid, req.locktype);
+        Set<Object> held = tidMapToLocks.get(req.tid);
+        if (held == null) {
+            tidMapToLocks.putIfAbsent(req.tid,
+                Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>()));
+            held = tidMapToLocks.get(req.tid);
+        }
+        held.add(res);
+    }
+
+    /** Tell the thread waiting on req that it is done waiting. */
+    private static void wake(Request req, boolean granted) {
+        synchronized (req) {
+            if (granted) {
+                req.granted = true;
+            } else {
+                req.aborted = true;
+            }
+            req.notify();
+        }
+    }
+
+    /** Grant waiting requests from the front of the queue for as long as
+        possible. Caller holds the monitor of stripe. */
+    private void grantWaiters(Stripe stripe, Object res, LockQueue q) {
+        while (!q.waiters.isEmpty()) {
+            Request head = q.waiters.getFirst();
+            if (!q.compatible(head)) {
+                break;
+            }
+            q.waiters.removeFirst();
+            numWaiting.decrementAndGet();
+            grant(q, res, head);
+            wake(head, true);
+        }
+        if (q.isFree()) {
+            stripe.queues.remove(res);
+        }
+    }
+
+    /**
+     * Withdraw a request whose thread gave up waiting. If it had been
+     * granted in the meantime the lock stays held; the transaction releases
+     * it when it completes.
+     */
+    private void cancel(Object res, Request req) {
+        Stripe stripe = stripeFor(res);
+        synchronized (stripe) {
+            LockQueue q = stripe.queues.get(res);
+            if (q != null && q.waiters.remove(req)) {
+                numWaiting.decrementAndGet();
+                grantWaiters(stripe, res, q);
+            }
+        }
+    }
+
+    public void releasePage(TransactionId tid, PageId pid) {
+        release(tid, pid);
+    }
+
+    /** Release tid's lock on res, a page id or a {@link #table}. */
+    public void release(TransactionId tid, Object res) {
+        Stripe stripe = stripeFor(res);
+        synchronized (stripe) {
+            Set<Object> held = tidMapToLocks.get(tid);
+            if (held != null) {
+                held.remove(res);
+            }
+            LockQueue q = stripe.queues.get(res);
+            if (q != null && q.holders.remove(tid) != null) {
+                grantWaiters(stripe, res, q);
+            }
+        }
+    }
+
+    /** Release every lock tid holds and drop any request it still has queued. */
+    public void releaseTransaction(TransactionId tid) {
+        abortWaiting(tid);
+        Set<Object> held = tidMapToLocks.get(tid);
+        if (held != null) {
+            for (Object res : new ArrayList<Object>(held)) {
+                release(tid, res);
+            }
+            tidMapToLocks.remove(tid);
+        }
+    }
+
+    /** Abort every queued request of tid, one stripe at a time. */
+    private boolean abortWaiting(TransactionId tid) {
+        boolean found = false;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                ArrayList<Object> touched = new ArrayList<Object>();
+                for (Map.Entry<Object, LockQueue> e : stripe.queues.entrySet()) {
+                    Iterator<Request> it = e.getValue().waiters.iterator();
+                    while (it.hasNext()) {
+                        Request req = it.next();
+                        if (req.tid.equals(tid)) {
+                            it.remove();
+                            numWaiting.decrementAndGet();
+                            wake(req, false);
+                            touched.add(e.getKey());
+                            found = true;
+                        }
+                    }
+                }
+                for (Object res : touched) {
+                    LockQueue q = stripe.queues.get(res);
+                    if (q != null) {
+                        grantWaiters(stripe, res, q);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Build the waits-for graph: a waiting request waits for every other
+     * transaction holding a conflicting lock on the resource, and for every
+     * transaction queued ahead of it. Caller holds every stripe.
+     */
+    private HashMap<TransactionId, HashSet<TransactionId>> waitsFor() {
+        HashMap<TransactionId, HashSet<TransactionId>> graph =
+            new HashMap<TransactionId, HashSet<TransactionId>>();
+        for (Stripe stripe : stripes) {
+            for (LockQueue q : stripe.queues.values()) {
+                int pos = 0;
+                for (Request req : q.waiters) {
+                    HashSet<TransactionId> out = graph.get(req.tid);
+                    if (out == null) {
+                        out = new HashSet<TransactionId>();
+                        graph.put(req.tid, out);
+                    }
+                    for (Map.Entry<TransactionId, LockType> h : q.holders.entrySet()) {
+                        if (!h.getKey().equals(req.tid)
+                            && !req.locktype.compatibleWith(h.getValue())) {
+                            out.add(h.getKey());
+                        }
+                    }
+                    Iterator<Request> ahead = q.waiters.iterator();
+                    for (int i = 0; i < pos; ++i) {
+                        TransactionId t = ahead.next().tid;
+                        if (!t.equals(req.tid)) {
+                            out.add(t);
+                        }
+                    }
+                    pos++;
+                }
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Find a cycle reachable from node by depth first search.
+     *
+     * @return the transactions on the cycle, or null if there is none
+     */
+    private static List<TransactionId> findCycle(TransactionId node,
+            HashMap<TransactionId, HashSet<TransactionId>> graph,
+            HashSet<TransactionId> finished, LinkedHashSet<TransactionId> path) {
+        if (path.contains(node)) {
+            ArrayList<TransactionId> cycle = new ArrayList<TransactionId>();
+            boolean on = false;
+            for (TransactionId t : path) {
+                on = on || t.equals(node);
+                if (on) {
+                    cycle.add(t);
+                }
+            }
+            return cycle;
+        }
+        if (finished.contains(node)) {
+            return null;
+        }
+        HashSet<TransactionId> out = graph.get(node);
+        if (out != null) {
+            path.add(node);
+            for (TransactionId next : out) {
+                List<TransactionId> cycle = findCycle(next, graph, finished, path);
+                if (cycle != null) {
+                    return cycle;
+                }
+            }
+            path.remove(node);
+        }
+        finished.add(node);
+        return null;
+    }
+
+    /**
+     * Look for cycles in the waits-for graph and abort the youngest
+     * transaction of each one until no cycle is left.
+     *
+     * @return the number of transactions aborted
+     */
+    int detectDeadlocks() {
+        if (numWaiting.get() == 0) {
+            return 0;
+        }
+        return detectDeadlocks(0);
+    }
+
+    /** Take the monitors of the stripes from the given one on, in order,
+        then look for deadlocks with all of them held. */
+    private int detectDeadlocks(int stripe) {
+        if (stripe < stripes.length) {
+            synchronized (stripes[stripe]) {
+                return detectDeadlocks(stripe + 1);
+            }
+        }
+        int aborted = 0;
+        while (numWaiting.get() > 0) {
+            HashMap<TransactionId, HashSet<TransactionId>> graph = waitsFor();
+            List<TransactionId> cycle = null;
+            HashSet<TransactionId> finished = new HashSet<TransactionId>();
+            for (TransactionId start : graph.keySet()) {
+                cycle = findCycle(start, graph, finished, new LinkedHashSet<TransactionId>());
+                if (cycle != null) {
+                    break;
+                }
+            }
+            if (cycle == null) {
+                break;
+            }
+            TransactionId victim = cycle.get(0);
+            for (TransactionId t : cycle) {
+                if (t.getId() > victim.getId()) {
+                    victim = t;
+                }
+            }
+            if (!abortWaiting(victim)) {
+                break;
+            }
+            deadlockVictims.incrementAndGet();
+            aborted++;
+        }
+        return aborted;
+    }
+
+    /** @return the number of lock requests that had to wait */
+    public long getLockWaits() {
+        return lockWaits.get();
+    }
+
+    /** @return total time, in milliseconds, spent waiting for locks */
+    public long getLockWaitMillis() {
+        return lockWaitNanos.get() / 1000000;
+    }
+
+    /** @return the number of transactions aborted to break a deadlock */
+    public long getDeadlockVictims() {
+        return deadlockVictims.get();
+    }
+
+    /** Reset the lock wait and deadlock counters. */
+    public void resetStats() {
+        lockWaits.set(0);
+        lockWaitNanos.set(0);
+        deadlockVictims.set(0);
+    }
+}
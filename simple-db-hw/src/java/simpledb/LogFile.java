@@ -3,7 +3,13 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -14,24 +20,16 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
-
-<p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
-
-       ..
-
-       }
-    }
-</pre>
+The log's state is protected by this object's monitor: the methods
+here are synchronized, or hold it for the part of the work that
+touches the log.  BufferPool writes log records (when pages are
+written) and the log calls into BufferPool (rollback and recovery
+discard pages, shutdown flushes them), but BufferPool only holds its
+partition latches to look pages up, never while it calls the log.  So
+the log's monitor is always taken before a partition latch, and the
+log needs no lock of BufferPool's.  Nothing waits for a sync while
+holding the monitor: records are appended under it, and the wait for
+them to reach the disk comes after leaving it; see awaitDurable.
 */
 
 /**
@@ -39,42 +37,98 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is a stream of bytes stored in fixed-size segment files
+next to the log file, which only holds the LSN of the last written
+checkpoint (or -1 if there are no checkpoints) and the first LSN still
+in the log.  See LogStream.
 
-<li> All additional data in the log consists of log records.  Log
+<li> All data in the segments consists of log records.  Log
 records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+after image.  An image is the page's id (the one byte tag of its
+PageType, an integer table id and an integer page number), an integer
+length and the page data.  They can be accessed with the
+LogFile.readPageData() and LogFile.writePageData() methods.
+
+<li>DELTA RECORDS describe the same change as an UPDATE record, but only
+carry the bytes of the page that changed: the page id (as in page
+images), an integer count of
+byte ranges, and for each range an integer offset into the page data, an
+integer length, and the before and after bytes of the range.  For a
+HeapPage, an insert or delete of one tuple is the header byte and the
+tuple's slot.  logWrite() writes a DELTA record whenever it is smaller
+than the two full images.  Undo and redo apply the ranges to the page as
+it is on disk.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+as a long integer transaction id and a long integer first record LSN
+for each active transaction.  It is followed by the dirty page table: an
+integer count of pages, and for each page its id (as in DELTA records)
+and the LSN of the first log record whose change may not be on disk
+yet (the page's recLSN).
 
 </ul>
 
 */
 
+/**
+<p> <u> Recovery: </u>
+<p>
+
+An LSN is the position of a record in the log, counted from the first
+byte ever written to it.  Truncation deletes whole segments that end
+before the oldest LSN recovery may need, so LSNs never change.  The LogFile keeps a dirty page table: every page
+with logged changes, from the first change that may not be on disk
+(recLSN) to the latest one (pageLSN).  The BufferPool reports page
+writes through pageWritten(), which drops the page from the table.  The
+page formats have no room for an LSN, so pageLSNs are only kept in
+memory, in the table.
+
+<p>
+
+recover() runs in three passes.  Analysis reads the log forward from the
+start of the redo range, which is the older of the last checkpoint and
+the smallest recLSN in its dirty page table, and finds the committed,
+aborted and unfinished transactions.  It also adds every page changed
+after the checkpoint to the dirty page table.  Redo then replays the
+changes of committed transactions, skipping every record older than its
+page's recLSN: such changes were on disk before the crash.  The log is
+read by one thread, but the changes are applied by REDO_THREADS lanes,
+each owning a share of the pages, so the changes to one page are applied
+in log order while different pages are written in parallel.  Undo rolls
+back all unfinished transactions in one backward pass and writes an ABORT
+record for each.  Aborted transactions were rolled back before their
+ABORT record was written, so they need neither.
+
+<p> <u> Group commit: </u>
+<p>
+
+Log records are appended to the LogStream's buffer under the LogFile
+monitor, but force() does not sync the log itself. It waits, without
+holding the monitor, until a single flusher thread has flushed the
+buffer and synced the log past the caller's last record. While the
+flusher syncs, other transactions keep appending and waiting; the next
+sync then covers all of them at once, so concurrent commits share fsyncs
+instead of queueing up one fsync each.
+*/
+
 public class LogFile {
 
-    final File logFile;
-    private RandomAccessFile raf;
+    private final LogStream stream;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,8 +136,12 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** Changed ranges closer together than this are logged as one range. */
+    static final int DELTA_MERGE_GAP = 8;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
@@ -93,6 +151,145 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /** Logged changes of one page that may not be on disk yet. */
+    static class DirtyPage {
+        final long recLsn;
+        long pageLsn;
+
+        DirtyPage(long lsn) {
+            this.recLsn = lsn;
+            this.pageLsn = lsn;
+        }
+    }
+
+    // the dirty page table, in LSNs
+    HashMap<PageId, DirtyPage> dirtyPages = new HashMap<PageId, DirtyPage>(); //protected by this
+    long lastCheckpointLsn = -1; //protected by this
+
+    /** One thread syncs every log file to disk. */
+    private static final ExecutorService flusher = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-log-flusher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /** Most threads that apply changes during the redo pass. */
+    static final int REDO_THREADS =
+        Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    /** Changes a redo lane may have queued before the log reader waits. */
+    static final int REDO_QUEUE_SIZE = 64;
+
+    /** Threads for the redo lanes of recovery; idle ones go away. */
+    private static final ExecutorService redoPool = Executors.newCachedThreadPool(
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-redo");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * Applies, in the order they arrive, the redo of the changes to the
+     * pages that hash to it: after-images of UPDATE records and DELTA
+     * records.  After a failure the lane keeps taking changes, so the log
+     * reader never blocks on it, but does not apply them.
+     */
+    private static class RedoLane implements Runnable {
+        static final Object DONE = new Object();
+
+        final BlockingQueue<Object> changes = new ArrayBlockingQueue<Object>(REDO_QUEUE_SIZE);
+        IOException error = null; // read once the lane has finished
+
+        void add(Object change) throws IOException {
+            try {
+                changes.put(change);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while queueing redo");
+            }
+        }
+
+        public void run() {
+            while (true) {
+                Object change;
+                try {
+                    change = changes.take();
+                } catch (InterruptedException e) {
+                    error = new InterruptedIOException("redo interrupted");
+                    return;
+                }
+                if (change == DONE) {
+                    return;
+                }
+                if (error != null) {
+                    continue;
+                }
+                try {
+                    if (change instanceof PageDelta) {
+                        ((PageDelta) change).apply(true);
+                    } else {
+                        Page pg = (Page) change;
+                        Database.getCatalog().getDatabaseFile(pg.getId().getTableId()).writePage(pg);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException(e);
+                }
+            }
+        }
+    }
+
+    // sequence numbers of appends; the log is on disk up to durableSeq
+    long appendSeq = 0; //protected by this
+    long durableSeq = 0; //protected by this
+    boolean flushPending = false; //protected by this
+    // the last failed sync, and the appends it should have made durable;
+    // cleared by the next sync that succeeds
+    IOException flushError = null; //protected by this
+    long failedSeq = 0; //protected by this
+    long numForces = 0; //protected by this
+
+    /** Syncs the log until everything appended so far is on disk. */
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            while (true) {
+                long target = 0;
+                try {
+                    synchronized (LogFile.this) {
+                        if (durableSeq >= appendSeq) {
+                            flushPending = false;
+                            return;
+                        }
+                        target = appendSeq;
+                        // hand the log buffer to the OS, then sync without
+                        // holding up appends
+                        stream.flush();
+                    }
+                    stream.force();
+                } catch (IOException e) {
+                    synchronized (LogFile.this) {
+                        flushError = e;
+                        failedSeq = target;
+                        flushPending = false;
+                        LogFile.this.notifyAll();
+                        return;
+                    }
+                }
+                synchronized (LogFile.this) {
+                    numForces++;
+                    durableSeq = Math.max(durableSeq, target);
+                    flushError = null;
+                    LogFile.this.notifyAll();
+                }
+            }
+        }
+    };
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,8 +302,12 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
-	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        this(f, LogStream.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor, with the size of the log's segment files. */
+    LogFile(File f, long segmentSize) throws IOException {
+        stream = new LogStream(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -125,47 +326,47 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        appendSeq++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            stream.reset();
+            currentOffset = stream.getFilePointer();
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the number of times the log was synced to disk */
+    public synchronized long getForceCount() {
+        return numForces;
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        long seq;
+        synchronized (this) {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
+            stream.writeInt(ABORT_RECORD);
+            stream.writeLong(tid.getId());
+            stream.writeLong(currentOffset);
+            currentOffset = stream.getFilePointer();
+            // a later checkpoint cannot be on disk without this record
+            tidToFirstLogRecord.remove(tid.getId());
+            seq = appendSeq;
         }
+        awaitDurable(seq);
     }
 
     /** Write a commit record to disk for the specified tid,
@@ -173,17 +374,22 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long seq;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            stream.writeInt(COMMIT_RECORD);
+            stream.writeLong(tid.getId());
+            stream.writeLong(currentOffset);
+            currentOffset = stream.getFilePointer();
+            // a later checkpoint cannot be on disk without this record
+            tidToFirstLogRecord.remove(tid.getId());
+            seq = appendSeq;
+        }
+        awaitDurable(seq);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -197,8 +403,8 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
+        Debug.log("WRITE, offset = " + stream.getFilePointer());
         /* update record conists of
 
            record type
@@ -207,92 +413,241 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        long lsn = currentOffset;
+        DirtyPage dp = dirtyPages.get(after.getId());
+        if (dp == null) {
+            dirtyPages.put(after.getId(), new DirtyPage(lsn));
+        } else {
+            dp.pageLsn = lsn;
+        }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        PageDelta delta = PageDelta.diff(before, after);
+        if (delta != null) {
+            stream.writeInt(DELTA_RECORD);
+            stream.writeLong(tid.getId());
+            writeDelta(stream, delta);
+        } else {
+            stream.writeInt(UPDATE_RECORD);
+            stream.writeLong(tid.getId());
+
+            writePageData(stream,before);
+            writePageData(stream,after);
+        }
+        stream.writeLong(currentOffset);
+        currentOffset = stream.getFilePointer();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
+    void writePageData(LogStream stream, Page p) throws IOException{
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+        // page id (see writePageId)
+        // page data length
+        // page data
+        writePageId(stream, p.getId());
+        byte[] pageData = p.getPageData();
+        stream.writeInt(pageData.length);
+        stream.write(pageData);
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    Page readPageData(LogStream stream) throws IOException {
+        PageId pid = readPageId(stream);
+        byte[] pageData = new byte[stream.readInt()];
+        stream.readFully(pageData);
+        return pageFromData(Database.getCatalog().getDatabaseFile(pid.getTableId()), pid, pageData);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /**
+     * The bytes of a page that one update changed, with their values before
+     * and after the update.
+     */
+    static class PageDelta {
+        final PageId pid;
+        final int[] offsets;
+        final byte[][] before;
+        final byte[][] after;
+
+        PageDelta(PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+            this.pid = pid;
+            this.offsets = offsets;
+            this.before = before;
+            this.after = after;
+        }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+        /**
+         * @return the changes from before to after, or null if a DELTA
+         *         record would be no smaller than an UPDATE record
+         */
+        static PageDelta diff(Page before, Page after) {
+            PageId pid = after.getId();
+            if (PageType.of(pid) == null) {
+                return null;
+            }
+            byte[] b = before.getPageData();
+            byte[] a = after.getPageData();
+            if (b.length != a.length) {
+                return null;
+            }
+            ArrayList<int[]> ranges = new ArrayList<int[]>();
+            int size = 0;
+            int i = 0;
+            while (i < a.length) {
+                if (a[i] == b[i]) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                int end = i + 1;
+                // extend over changed bytes and small unchanged gaps
+                for (int j = end; j < a.length && j < end + DELTA_MERGE_GAP; ++j) {
+                    if (a[j] != b[j]) {
+                        end = j + 1;
+                    }
+                }
+                ranges.add(new int[] { start, end - start });
+                size += 2 * INT_SIZE + 2 * (end - start);
+                if (size >= 2 * a.length) {
+                    return null;
+                }
+                i = end;
+            }
+            int n = ranges.size();
+            int[] offsets = new int[n];
+            byte[][] bs = new byte[n][];
+            byte[][] as = new byte[n][];
+            for (int r = 0; r < n; ++r) {
+                int off = ranges.get(r)[0];
+                int len = ranges.get(r)[1];
+                offsets[r] = off;
+                bs[r] = Arrays.copyOfRange(b, off, off + len);
+                as[r] = Arrays.copyOfRange(a, off, off + len);
+            }
+            return new PageDelta(pid, offsets, bs, as);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+        /**
+         * Apply the before (undo) or after (redo) bytes to the page on disk
+         * and write it back.
+         */
+        void apply(boolean redo) throws IOException {
+            DbFile df = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            byte[] data = df.readPage(pid).getPageData();
+            byte[][] images = redo ? after : before;
+            for (int r = 0; r < offsets.length; ++r) {
+                System.arraycopy(images[r], 0, data, offsets[r], images[r].length);
+            }
+            df.writePage(pageFromData(df, pid, data));
+        }
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** Build a page of the right class for pid from its serialized data. */
+    static Page pageFromData(DbFile df, PageId pid, byte[] data) throws IOException {
+        PageType type = PageType.of(pid);
+        if (type == null) {
+            throw new IOException("no page type for " + pid);
+        }
+        return type.makePage(df, pid, data);
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+    void writeDelta(LogStream stream, PageDelta delta) throws IOException {
+        writePageId(stream, delta.pid);
+        stream.writeInt(delta.offsets.length);
+        for (int r = 0; r < delta.offsets.length; ++r) {
+            stream.writeInt(delta.offsets[r]);
+            stream.writeInt(delta.before[r].length);
+            stream.write(delta.before[r]);
+            stream.write(delta.after[r]);
+        }
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    PageDelta readDelta(LogStream stream) throws IOException {
+        PageId pid = readPageId(stream);
+        int n = stream.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; ++r) {
+            offsets[r] = stream.readInt();
+            int len = stream.readInt();
+            before[r] = new byte[len];
+            stream.readFully(before[r]);
+            after[r] = new byte[len];
+            stream.readFully(after[r]);
+        }
+        return new PageDelta(pid, offsets, before, after);
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /**
+     * @return the LSN of the latest logged change to pid, or -1 if the
+     *         page has no logged changes that may be missing on disk
+     */
+    public synchronized long getPageLsn(PageId pid) {
+        DirtyPage dp = dirtyPages.get(pid);
+        return dp == null ? -1 : dp.pageLsn;
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /**
+     * Tell the log that a page was written to disk with all its changes up
+     * to the given LSN, so recovery need not redo them.
+     *
+     * @param lsn what getPageLsn returned before the page was written
+     */
+    public synchronized void pageWritten(PageId pid, long lsn) {
+        DirtyPage dp = dirtyPages.get(pid);
+        if (dp != null && dp.pageLsn <= lsn) {
+            dirtyPages.remove(pid);
+        }
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /**
+     * @return the dirty pages whose oldest logged change precedes the last
+     *         checkpoint, oldest first. Until they are written, recovery has
+     *         to start before that checkpoint and the log cannot be
+     *         truncated past them.
+     */
+    public synchronized List<PageId> getPagesBeforeCheckpoint() {
+        ArrayList<Map.Entry<PageId, DirtyPage>> old = new ArrayList<Map.Entry<PageId, DirtyPage>>();
+        for (Map.Entry<PageId, DirtyPage> e : dirtyPages.entrySet()) {
+            if (e.getValue().recLsn < lastCheckpointLsn) {
+                old.add(e);
+            }
+        }
+        Collections.sort(old, new Comparator<Map.Entry<PageId, DirtyPage>>() {
+            public int compare(Map.Entry<PageId, DirtyPage> a, Map.Entry<PageId, DirtyPage> b) {
+                return Long.compare(a.getValue().recLsn, b.getValue().recLsn);
+            }
+        });
+        ArrayList<PageId> pids = new ArrayList<PageId>(old.size());
+        for (Map.Entry<PageId, DirtyPage> e : old) {
+            pids.add(e.getKey());
+        }
+        return pids;
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    void writePageId(LogStream stream, PageId pid) throws IOException {
+        PageType type = PageType.of(pid);
+        if (type == null) {
+            throw new IOException("no page type for " + pid);
         }
-        return newPage;
+        stream.writeByte(type.getTag());
+        stream.writeInt(pid.getTableId());
+        stream.writeInt(pid.getPageNumber());
+    }
 
+    PageId readPageId(LogStream stream) throws IOException {
+        PageType type = PageType.fromTag(stream.readByte());
+        int tableId = stream.readInt();
+        return type.makeId(tableId, stream.readInt());
+    }
+
+    /**
+     * Skip over a page image written by writePageData.
+     * @return the id of the page
+     */
+    PageId skipPageData(LogStream stream) throws IOException {
+        PageId pid = readPageId(stream);
+        stream.skipBytes(stream.readInt());
+        return pid;
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,50 +662,59 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        stream.writeInt(BEGIN_RECORD);
+        stream.writeLong(tid.getId());
+        stream.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = stream.getFilePointer();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        The checkpoint is fuzzy: it writes no pages, it only records the
+        active transactions and the dirty page table, so it holds the log
+        for the time it takes to append one record.  Pages reach the disk
+        through commits and the BufferPool's background writer.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + stream.getFilePointer());
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            startCpOffset = stream.getFilePointer();
+            stream.writeInt(CHECKPOINT_RECORD);
+            stream.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            stream.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                stream.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                stream.writeLong(tidToFirstLogRecord.get(key));
+            }
+
+            //write the dirty page table
+            stream.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, DirtyPage> e : dirtyPages.entrySet()) {
+                writePageId(stream, e.getKey());
+                stream.writeLong(e.getValue().recLsn);
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            stream.writeLong(currentOffset);
+            currentOffset = stream.getFilePointer();
+            lastCheckpointLsn = startCpOffset;
+            //Debug.log("CP OFFSET = " + currentOffset);
+        }
+        force();
+        synchronized (this) {
+            //once the CP is on disk, point the log file at it
+            if (lastCheckpointLsn > stream.getCheckpoint()) {
+                stream.setCheckpoint(lastCheckpointLsn);
             }
         }
 
@@ -358,98 +722,54 @@ public class LogFile {
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Recovery reads nothing older than the last checkpoint,
+        the first records of the transactions active at that checkpoint and
+        the recLSNs in its dirty page table; the segments that end before
+        all of them are deleted. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = stream.getCheckpoint();
 
         long minLogRecord = cpLoc;
 
         if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
+            stream.seek(cpLoc);
+            int cpType = stream.readInt();
             @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            long cpTid = stream.readLong();
 
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
+            int numOutstanding = stream.readInt();
 
             for (int i = 0; i < numOutstanding; i++) {
                 @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+                long tid = stream.readLong();
+                long firstLogRecord = stream.readLong();
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+            // redo may have to start at the oldest change not on disk
+            int numDirty = stream.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                readPageId(stream);
+                long recOffset = stream.readLong();
+                if (recOffset < minLogRecord) {
+                    minLogRecord = recOffset;
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
-        }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+            Debug.log("TRUNCATING LOG;  WAS " + (stream.length() - stream.getStart()) + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (stream.length() - minLogRecord));
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+            // we can truncate everything before minLogRecord
+            stream.truncateBefore(minLogRecord);
+        }
 
-        currentOffset = raf.getFilePointer();
+        stream.seek(currentOffset);
         //print();
     }
 
@@ -473,45 +793,53 @@ public class LogFile {
 	*/
     
     private void dorollback(Long tid, Long pos) throws IOException {
-    	this.print();
         preAppend();
         // some code goes here
-        raf.seek(pos - LONG_SIZE);
-        long startOffset = raf.readLong();
+        stream.seek(pos - LONG_SIZE);
+        long startOffset = stream.readLong();
         long begin = this.tidToFirstLogRecord.get(tid);
         while(begin < startOffset) {
-        	raf.seek(startOffset); 
-        	int recordType = raf.readInt();
+        	stream.seek(startOffset); 
+        	int recordType = stream.readInt();
         	if(recordType == UPDATE_RECORD) {
-        		long nowTidNumber = raf.readLong();
+        		long nowTidNumber = stream.readLong();
         		if(tid == nowTidNumber) {
-        			Page beforePg = readPageData(raf);
+        			Page beforePg = readPageData(stream);
         			Database.getCatalog().getDatabaseFile(beforePg.getId().getTableId()).writePage(beforePg);
         			Database.getBufferPool().discardPage(beforePg.getId());
         		}
         	}
-        	raf.seek(startOffset - LONG_SIZE);
-        	startOffset = raf.readLong();
+        	else if(recordType == DELTA_RECORD) {
+        		long nowTidNumber = stream.readLong();
+        		if(tid == nowTidNumber) {
+        			PageDelta delta = readDelta(stream);
+        			delta.apply(false);
+        			Database.getBufferPool().discardPage(delta.pid);
+        		}
+        	}
+        	stream.seek(startOffset - LONG_SIZE);
+        	startOffset = stream.readLong();
         }
-        raf.seek(currentOffset);
+        stream.seek(currentOffset);
     }
-    public void rollback(TransactionId tid)
+    public synchronized void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-            	dorollback(tid.getId(), raf.length());
-            }
-        }
+        dorollback(tid.getId(), stream.length());
     }
     
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // checkpoints do not write pages; write them all so that start
+            // up has nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                stream.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -521,136 +849,240 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        See the class comment for the three passes.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
-                
-                raf.seek(0);
-                long checkPointOffset = raf.readLong();
-                long redoBeg;
-                HashSet<Long> commits = new HashSet<Long>(); 
-                HashSet<Long> undos = new HashSet<Long>();
-                if(checkPointOffset == NO_CHECKPOINT_ID) {
-                	redoBeg = LONG_SIZE;
+        synchronized (this) {
+            recoveryUndecided = false;
+
+            long checkPointOffset = stream.getCheckpoint();
+            currentOffset = stream.length();
+
+            // recLSN of every page that may miss changes, as offsets
+            HashMap<PageId, Long> dpt = new HashMap<PageId, Long>();
+            HashSet<Long> commits = new HashSet<Long>();
+            HashSet<Long> losers = new HashSet<Long>();
+            long redoBeg = stream.getStart();
+            if (checkPointOffset != NO_CHECKPOINT_ID) {
+                stream.seek(checkPointOffset);
+                if (stream.readInt() != CHECKPOINT_RECORD) {
+                    throw new IOException("Checkpoint pointer does not point to checkpoint record");
                 }
-                else {
-                	raf.seek(checkPointOffset);
-                	int recordType = raf.readInt();
-                	assert(recordType == CHECKPOINT_RECORD);
-                	assert(raf.readLong() == -1);
-                	int cnt = raf.readInt();
-                	redoBeg = checkPointOffset;
-                	for(int i = 1; i <= cnt; ++i) {
-                		long tid = raf.readLong();
-                		long tidOffset = raf.readLong();
-                		tidToFirstLogRecord.put(tid, tidOffset);
-                		undos.add(tid);
-                	}
+                stream.readLong();
+                int numXactions = stream.readInt();
+                for (int i = 0; i < numXactions; ++i) {
+                    long tid = stream.readLong();
+                    tidToFirstLogRecord.put(tid, stream.readLong());
+                    losers.add(tid);
                 }
-                currentOffset = raf.length();
-                //step1 recover the information about txns
-                //from last to next(it's easier to back than forward)
-                raf.seek(raf.length() - LONG_SIZE);
-                for(long curOffset = raf.readLong(); curOffset >= redoBeg;) {
-                	raf.seek(curOffset);
-                	int recordType = raf.readInt();
-                	long tid;
-                	switch(recordType) {
-                	case BEGIN_RECORD:
-                		tid = raf.readLong();
-                		undos.add(tid);
-                		break;
-                	case COMMIT_RECORD:
-                		tid = raf.readLong();
-                		commits.add(tid);
-                		break;
-                	case UPDATE_RECORD:
-                		break;
-                	case ABORT_RECORD:
-                		break;
-                	case CHECKPOINT_RECORD:
-                		break;
-                	}
-                	if(curOffset <= redoBeg) {
-                		curOffset = -1;
-                	}
-                	else {
-                		raf.seek(curOffset - LONG_SIZE);
-                		curOffset = raf.readLong();
-                	}
+                redoBeg = checkPointOffset;
+                int numDirty = stream.readInt();
+                for (int i = 0; i < numDirty; ++i) {
+                    PageId pid = readPageId(stream);
+                    long recOffset = stream.readLong();
+                    dpt.put(pid, recOffset);
+                    redoBeg = Math.min(redoBeg, recOffset);
                 }
-                //step2 redo phase
-                for(long curOffset = redoBeg; curOffset < currentOffset;) {
-                	raf.seek(curOffset);
-                	int recordType = raf.readInt();
-                	switch(recordType) {
-                	case CHECKPOINT_RECORD:
-                		{
-                			//do nothing                			
-                			assert(checkPointOffset == curOffset);
-                			assert(raf.readLong() == -1);
-                			int cnt = raf.readInt();
-                			curOffset = raf.getFilePointer() + cnt * LONG_SIZE * 2; //skip active tids
-                			break;
-                		}
-               		
-                	case ABORT_RECORD:
-                		//undo
-                		{	
-                			Long tid = raf.readLong();
-                			if(!tidToFirstLogRecord.containsKey(tid)) {
-                				throw new IOException("Abort not exist txn");
-                			}
-                			dorollback(tid, curOffset);
-                			curOffset += INT_SIZE * LONG_SIZE;//record_type and tid
-                			tidToFirstLogRecord.remove(tid);
-                			undos.remove(tid);
-                			break;
-                		}
-                	case COMMIT_RECORD:
-                		//do nothing
-                		{
-                			Long tid = raf.readLong();
-                			tidToFirstLogRecord.remove(tid);
-                			undos.remove(tid);
-                			curOffset = raf.getFilePointer();
-                			break;
-                		}
-                	
-                	case BEGIN_RECORD:
-                		{
-                			long tid = raf.readLong();
-                			tidToFirstLogRecord.put(tid, curOffset);
-                			curOffset = raf.getFilePointer();
-                			break;
-                		}
-                	case UPDATE_RECORD:
-                		{
-                			long tid = raf.readLong();
-                			Page beforePg = readPageData(raf);  
-            				Page afterPg = readPageData(raf);
-            				if(commits.contains(tid)) {	
-                				Database.getCatalog().getDatabaseFile(afterPg.getId().getTableId()).writePage(afterPg);
-                				Database.getBufferPool().discardPage(beforePg.getId());
-                			}
-                			curOffset = raf.getFilePointer();
-                			break;
-                		}
-                	}
-                	curOffset += LONG_SIZE; //start_offset
-                	
+            }
+
+            analyze(redoBeg, checkPointOffset, dpt, commits, losers);
+            redo(redoBeg, dpt, commits);
+            undo(losers);
+        }
+        // the losers' ABORT records
+        force();
+    }
+
+    /**
+     * Analysis pass: find out how every transaction in the redo range
+     * ended, and add the pages changed after the checkpoint to dpt.
+     */
+    private void analyze(long redoBeg, long checkPointOffset, HashMap<PageId, Long> dpt,
+                         HashSet<Long> commits, HashSet<Long> losers) throws IOException {
+        for (long curOffset = redoBeg; curOffset < currentOffset;) {
+            stream.seek(curOffset);
+            int recordType = stream.readInt();
+            long tid = stream.readLong();
+            PageId pid = null;
+            switch (recordType) {
+            case BEGIN_RECORD:
+                tidToFirstLogRecord.put(tid, curOffset);
+                losers.add(tid);
+                break;
+            case COMMIT_RECORD:
+                commits.add(tid);
+                losers.remove(tid);
+                tidToFirstLogRecord.remove(tid);
+                break;
+            case ABORT_RECORD:
+                losers.remove(tid);
+                tidToFirstLogRecord.remove(tid);
+                break;
+            case UPDATE_RECORD:
+                pid = skipPageData(stream);
+                skipPageData(stream);
+                break;
+            case DELTA_RECORD:
+                pid = readDelta(stream).pid;
+                break;
+            case CHECKPOINT_RECORD:
+                skipCheckpoint(stream);
+                break;
+            default:
+                throw new IOException("bad log record type " + recordType);
+            }
+            // pages clean at the checkpoint only miss what came after it
+            if (pid != null && curOffset > checkPointOffset && !dpt.containsKey(pid)) {
+                dpt.put(pid, curOffset);
+            }
+            stream.readLong();
+            curOffset = stream.getFilePointer();
+        }
+    }
+
+    /** Skip the body of a checkpoint record. */
+    private void skipCheckpoint(LogStream stream) throws IOException {
+        int numXactions = stream.readInt();
+        stream.skipBytes(numXactions * LONG_SIZE * 2);
+        int numDirty = stream.readInt();
+        for (int i = 0; i < numDirty; ++i) {
+            readPageId(stream);
+            stream.readLong();
+        }
+    }
+
+    /**
+     * Redo pass: replay the changes of committed transactions that may be
+     * missing on disk.  This thread reads the log and hands each change to
+     * the lane that owns its page.
+     */
+    private void redo(long redoBeg, HashMap<PageId, Long> dpt, HashSet<Long> commits)
+        throws IOException {
+        RedoLane[] lanes = new RedoLane[REDO_THREADS];
+        ArrayList<Future<?>> running = new ArrayList<Future<?>>();
+        for (int i = 0; i < lanes.length; ++i) {
+            lanes[i] = new RedoLane();
+            running.add(redoPool.submit(lanes[i]));
+        }
+        HashSet<PageId> redone = new HashSet<PageId>();
+        try {
+            for (long curOffset = redoBeg; curOffset < currentOffset;) {
+                stream.seek(curOffset);
+                int recordType = stream.readInt();
+                long tid = stream.readLong();
+                switch (recordType) {
+                case UPDATE_RECORD:
+                    {
+                        if (!commits.contains(tid)) {
+                            skipPageData(stream);
+                            skipPageData(stream);
+                            break;
+                        }
+                        skipPageData(stream);
+                        Page afterPg = readPageData(stream);
+                        PageId pid = afterPg.getId();
+                        Long recOffset = dpt.get(pid);
+                        if (recOffset != null && curOffset >= recOffset) {
+                            laneOf(lanes, pid).add(afterPg);
+                            redone.add(pid);
+                        }
+                        break;
+                    }
+                case DELTA_RECORD:
+                    {
+                        PageDelta delta = readDelta(stream);
+                        Long recOffset = dpt.get(delta.pid);
+                        if (commits.contains(tid) && recOffset != null && curOffset >= recOffset) {
+                            laneOf(lanes, delta.pid).add(delta);
+                            redone.add(delta.pid);
+                        }
+                        break;
+                    }
+                case CHECKPOINT_RECORD:
+                    skipCheckpoint(stream);
+                    break;
+                default:
+                    break;
                 }
-                
-                //step3 undo phase
-                for(Long tid: undos) {
-                	dorollback(tid, raf.length());
+                stream.readLong();
+                curOffset = stream.getFilePointer();
+            }
+        } finally {
+            for (RedoLane lane : lanes) {
+                lane.add(RedoLane.DONE);
+            }
+            for (Future<?> f : running) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while waiting for redo");
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
                 }
-                
             }
-         }
+        }
+        for (RedoLane lane : lanes) {
+            if (lane.error != null) {
+                throw lane.error;
+            }
+        }
+        for (PageId pid : redone) {
+            Database.getBufferPool().discardPage(pid);
+        }
+    }
+
+    private static RedoLane laneOf(RedoLane[] lanes, PageId pid) {
+        return lanes[(pid.hashCode() & Integer.MAX_VALUE) % lanes.length];
+    }
+
+    /**
+     * Undo pass: roll back every loser in one backward scan of the log,
+     * then record that they aborted. The caller forces the ABORT records.
+     */
+    private void undo(HashSet<Long> losers) throws IOException {
+        if (losers.isEmpty()) {
+            return;
+        }
+        long first = currentOffset;
+        for (Long tid : losers) {
+            Long start = tidToFirstLogRecord.get(tid);
+            if (start != null) {
+                first = Math.min(first, start);
+            }
+        }
+        stream.seek(currentOffset - LONG_SIZE);
+        long curOffset = stream.readLong();
+        while (curOffset >= first) {
+            stream.seek(curOffset);
+            int recordType = stream.readInt();
+            long tid = stream.readLong();
+            if (losers.contains(tid)) {
+                if (recordType == UPDATE_RECORD) {
+                    Page beforePg = readPageData(stream);
+                    Database.getCatalog().getDatabaseFile(beforePg.getId().getTableId()).writePage(beforePg);
+                    Database.getBufferPool().discardPage(beforePg.getId());
+                } else if (recordType == DELTA_RECORD) {
+                    PageDelta delta = readDelta(stream);
+                    delta.apply(false);
+                    Database.getBufferPool().discardPage(delta.pid);
+                }
+            }
+            if (curOffset <= stream.getStart()) {
+                break;
+            }
+            stream.seek(curOffset - LONG_SIZE);
+            curOffset = stream.readLong();
+        }
+
+        stream.seek(currentOffset);
+        for (Long tid : losers) {
+            preAppend();
+            stream.writeInt(ABORT_RECORD);
+            stream.writeLong(tid);
+            stream.writeLong(currentOffset);
+            currentOffset = stream.getFilePointer();
+            tidToFirstLogRecord.remove(tid);
+        }
     }
 
     /** Print out a human readable represenation of the log */
@@ -658,8 +1090,43 @@ public class LogFile {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Wait until every record appended so far is on disk. The caller
+     * shares the sync with everybody else waiting at the same time.
+     */
+    public void force() throws IOException {
+        long seq;
+        synchronized (this) {
+            seq = appendSeq;
+        }
+        awaitDurable(seq);
+    }
+
+    /**
+     * Wait until the log is on disk up to the append with sequence number
+     * seq, asking the flusher for a sync if none is under way. The caller
+     * must not hold the monitor: waiting would release it in the middle of
+     * the caller's work. Only callers whose appends were in a failed sync
+     * see its error; later ones get a new sync.
+     */
+    private void awaitDurable(long seq) throws IOException {
+        assert !Thread.holdsLock(this) : "waiting for the log while holding it";
+        synchronized (this) {
+            while (durableSeq < seq) {
+                if (flushError != null && seq <= failedSeq) {
+                    throw new IOException("log sync failed: " + flushError.getMessage());
+                }
+                if (!flushPending) {
+                    flushPending = true;
+                    flusher.execute(flushTask);
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while waiting for the log");
+                }
+            }
+        }
     }
 
 }
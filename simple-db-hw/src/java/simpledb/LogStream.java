@@ -0,0 +1,382 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogStream holds the log as one stream of bytes addressed by LSN, the
+ * position of a byte in the stream since the log was created. The bytes
+ * live in a sequence of fixed-size segment files next to the log's control
+ * file: segment n holds LSNs [n * segmentSize, (n + 1) * segmentSize) and
+ * is named after the control file plus "." and n. A record may span two
+ * segments.
+ * <p>
+ * The control file holds two longs: the LSN of the last checkpoint, or -1
+ * if there is none, and the first LSN still in the log. Truncating the log
+ * moves that first LSN forward and deletes the segments that lie entirely
+ * before it; nothing is copied.
+ * <p>
+ * Like a RandomAccessFile, a LogStream has a current position where reads
+ * and writes start, and which they advance. Writes are collected in a
+ * direct ByteBuffer and reach the segments' FileChannels a buffer at a time,
+ * when it fills up, on flush(), or before a read of the buffered bytes, so
+ * appending a record costs no system calls and allocates nothing.
+ * <p>
+ * A LogStream is not thread safe, with one exception: force() may run while
+ * another thread reads or writes. It syncs what was flushed before it
+ * started.
+ *
+ * @see LogFile
+ */
+public class LogStream {
+
+    /** Size of a segment file used when none is given to the constructor. */
+    public static final long DEFAULT_SEGMENT_SIZE = 1 << 24;
+
+    /** Size of the buffer that collects appends. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private static final long NO_CHECKPOINT = -1;
+
+    private final File control;
+    private final RandomAccessFile controlFile;
+    private final long segmentSize;
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+    // segments written since the last force, protected by itself
+    private final Set<FileChannel> unsynced = new HashSet<FileChannel>();
+
+    // bytes written but not flushed; the first one is at LSN bufStart
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long bufStart;
+    // scratch space for reading numbers
+    private final ByteBuffer scratch = ByteBuffer.allocate(LogFile.LONG_SIZE);
+
+    private long checkpoint;
+    private long start;
+    private long end;
+    private long pos;
+
+    /**
+     * Open the log whose control file is f, creating an empty log if f is
+     * empty or missing.
+     */
+    public LogStream(File f, long segmentSize) throws IOException {
+        this.control = f;
+        this.segmentSize = segmentSize;
+        this.controlFile = new RandomAccessFile(f, "rw");
+        if (controlFile.length() >= 2 * LogFile.LONG_SIZE) {
+            controlFile.seek(0);
+            checkpoint = controlFile.readLong();
+            start = controlFile.readLong();
+        } else {
+            checkpoint = NO_CHECKPOINT;
+            start = 0;
+        }
+        end = start;
+        for (long n : segmentNumbers()) {
+            end = Math.max(end, n * segmentSize + segmentFile(n).length());
+        }
+        pos = start;
+        bufStart = end;
+    }
+
+    private File segmentFile(long n) {
+        return new File(control.getPath() + "." + n);
+    }
+
+    /** @return the numbers of the segment files that exist, in order */
+    private List<Long> segmentNumbers() {
+        File dir = control.getAbsoluteFile().getParentFile();
+        String prefix = control.getName() + ".";
+        ArrayList<Long> numbers = new ArrayList<Long>();
+        String[] names = dir.list();
+        if (names == null) {
+            return numbers;
+        }
+        for (String name : names) {
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            try {
+                numbers.add(Long.parseLong(name.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private RandomAccessFile segment(long n) throws IOException {
+        RandomAccessFile seg = segments.get(n);
+        if (seg == null) {
+            seg = new RandomAccessFile(segmentFile(n), "rw");
+            segments.put(n, seg);
+        }
+        return seg;
+    }
+
+    private void writeControl() throws IOException {
+        controlFile.seek(0);
+        controlFile.writeLong(checkpoint);
+        controlFile.writeLong(start);
+        controlFile.getFD().sync();
+    }
+
+    /** @return the LSN of the last checkpoint record, or -1 */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /** Record, durably, where the last checkpoint record starts. */
+    public void setCheckpoint(long lsn) throws IOException {
+        checkpoint = lsn;
+        writeControl();
+    }
+
+    /** @return the first LSN in the log */
+    public long getStart() {
+        return start;
+    }
+
+    /** @return the LSN one past the last byte in the log */
+    public long length() {
+        return end;
+    }
+
+    public long getFilePointer() {
+        return pos;
+    }
+
+    public void seek(long lsn) {
+        pos = lsn;
+    }
+
+    /** Throw the whole log away; the next byte written gets LSN 0. */
+    public void reset() throws IOException {
+        buf.clear();
+        bufStart = 0;
+        for (RandomAccessFile seg : segments.values()) {
+            seg.close();
+        }
+        segments.clear();
+        for (long n : segmentNumbers()) {
+            segmentFile(n).delete();
+        }
+        checkpoint = NO_CHECKPOINT;
+        start = end = pos = 0;
+        writeControl();
+    }
+
+    /**
+     * Drop everything before the given LSN: the log now starts there, and
+     * the segments that end at or before it are deleted.
+     */
+    public void truncateBefore(long lsn) throws IOException {
+        if (lsn <= start) {
+            return;
+        }
+        flush();
+        start = Math.min(lsn, end);
+        writeControl();
+        for (long n : segmentNumbers()) {
+            if ((n + 1) * segmentSize > start) {
+                break;
+            }
+            RandomAccessFile seg = segments.remove(n);
+            if (seg != null) {
+                seg.close();
+            }
+            segmentFile(n).delete();
+        }
+    }
+
+    /**
+     * Write the buffered bytes to the segments, without syncing them.
+     */
+    public void flush() throws IOException {
+        buf.flip();
+        long at = bufStart;
+        while (buf.hasRemaining()) {
+            long n = at / segmentSize;
+            int chunk = (int) Math.min(buf.remaining(), (n + 1) * segmentSize - at);
+            FileChannel ch = segment(n).getChannel();
+            int limit = buf.limit();
+            buf.limit(buf.position() + chunk);
+            while (buf.hasRemaining()) {
+                int written = ch.write(buf, at - n * segmentSize);
+                at += written;
+            }
+            buf.limit(limit);
+            synchronized (unsynced) {
+                unsynced.add(ch);
+            }
+        }
+        buf.clear();
+        bufStart = at;
+    }
+
+    /**
+     * Read up to len bytes at the current position.
+     * @return the number of bytes read, or -1 at the end of the log
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        return read(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Read bytes at the current position into dst, until it is full or the
+     * log ends.
+     * @return the number of bytes read, or -1 at the end of the log
+     */
+    private int read(ByteBuffer dst) throws IOException {
+        if (pos >= end) {
+            return -1;
+        }
+        int len = (int) Math.min(dst.remaining(), end - pos);
+        if (buf.position() > 0 && pos + len > bufStart) {
+            flush();
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + len);
+        while (dst.hasRemaining()) {
+            long n = pos / segmentSize;
+            int chunk = (int) Math.min(dst.remaining(), (n + 1) * segmentSize - pos);
+            FileChannel ch = segment(n).getChannel();
+            int segLimit = dst.limit();
+            dst.limit(dst.position() + chunk);
+            while (dst.hasRemaining()) {
+                int got = ch.read(dst, pos - n * segmentSize);
+                if (got < 0) {
+                    throw new EOFException("segment " + n + " is short");
+                }
+                pos += got;
+            }
+            dst.limit(segLimit);
+        }
+        dst.limit(limit);
+        return len;
+    }
+
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        if (b.length > 0 && read(b, 0, b.length) != b.length) {
+            throw new EOFException();
+        }
+    }
+
+    public int skipBytes(int n) {
+        int skipped = (int) Math.max(0, Math.min(n, end - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    private ByteBuffer readScratch(int len) throws IOException {
+        scratch.clear();
+        scratch.limit(len);
+        if (read(scratch) != len) {
+            throw new EOFException();
+        }
+        scratch.flip();
+        return scratch;
+    }
+
+    public byte readByte() throws IOException {
+        return readScratch(1).get();
+    }
+
+    public int readInt() throws IOException {
+        return readScratch(LogFile.INT_SIZE).getInt();
+    }
+
+    public long readLong() throws IOException {
+        return readScratch(LogFile.LONG_SIZE).getLong();
+    }
+
+    /**
+     * Make room for len more bytes in the buffer, continuing it at the
+     * current position.
+     */
+    private void reserve(int len) throws IOException {
+        if (pos != bufStart + buf.position()) {
+            flush();
+            bufStart = pos;
+        } else if (buf.remaining() < len) {
+            flush();
+        }
+    }
+
+    private void appended(int len) {
+        pos += len;
+        end = Math.max(end, pos);
+    }
+
+    /** Write len bytes at the current position, extending the log if needed. */
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            reserve(1);
+            int chunk = Math.min(len, buf.remaining());
+            buf.put(b, off, chunk);
+            appended(chunk);
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    public void writeByte(int v) throws IOException {
+        reserve(1);
+        buf.put((byte) v);
+        appended(1);
+    }
+
+    public void writeInt(int v) throws IOException {
+        reserve(LogFile.INT_SIZE);
+        buf.putInt(v);
+        appended(LogFile.INT_SIZE);
+    }
+
+    public void writeLong(long v) throws IOException {
+        reserve(LogFile.LONG_SIZE);
+        buf.putLong(v);
+        appended(LogFile.LONG_SIZE);
+    }
+
+    /**
+     * Force every segment flushed to since the last call to disk. Safe to
+     * call while another thread is writing; what that thread flushes after
+     * this call started is left for the next one.
+     */
+    public void force() throws IOException {
+        ArrayList<FileChannel> toSync;
+        synchronized (unsynced) {
+            toSync = new ArrayList<FileChannel>(unsynced);
+            unsynced.clear();
+        }
+        for (FileChannel ch : toSync) {
+            try {
+                ch.force(true);
+            } catch (ClosedChannelException e) {
+                // truncated away, nobody needs it any more
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        flush();
+        for (RandomAccessFile seg : segments.values()) {
+            seg.close();
+        }
+        segments.clear();
+        controlFile.close();
+    }
+}
@@ -271,6 +271,38 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Find an equality filter on an indexed field of a table, and return
+     *  an {@link IndexScan} that reads only the tuples matching it.  The
+     *  filter is still applied on top of the scan, like every other filter.
+     *  @param t The transaction the scan will run as a part of
+     *  @param table The table to scan
+     *  @return the index scan, or null if no filter on the table can use an index
+     *  @throws NoSuchElementException if the table doesn't exist
+     */
+    private SeqScan indexScanFor(TransactionId t, LogicalScanNode table) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias) || lf.p != Predicate.Op.EQUALS)
+                continue;
+            int field;
+            try {
+                field = td.fieldNameToIndex(lf.fieldPureName);
+            } catch (NoSuchElementException e) {
+                continue;
+            }
+            SecondaryIndex index = Database.getCatalog().getIndex(table.t, field);
+            if (index == null)
+                continue;
+            Field f;
+            if (td.getFieldType(field) == Type.INT_TYPE)
+                f = new IntField(Integer.parseInt(lf.c));
+            else
+                f = new StringField(lf.c, Type.STRING_LEN);
+            return new IndexScan(t, index, table.alias, new IndexPredicate(lf.p, f));
+        }
+        return null;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -294,7 +326,9 @@ public class LogicalPlan {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 ss = indexScanFor(t, table);
+                 if (ss == null)
+                     ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * The kinds of pages SimpleDb stores, each with the one-byte tag that
+ * identifies it in the log.  A page type knows how to build its page id
+ * from a table id and page number, and its page from the bytes on disk, so
+ * that the log can be read back without reflection.
+ */
+public enum PageType {
+    HEAP(0) {
+        @Override
+        public PageId makeId(int tableId, int pgNo) {
+            return new HeapPageId(tableId, pgNo);
+        }
+
+        @Override
+        public Page makePage(DbFile file, PageId pid, byte[] data) throws IOException {
+            return new HeapPage((HeapPageId) pid, data);
+        }
+
+    }, BTREE_ROOT_PTR(1) {
+        @Override
+        public PageId makeId(int tableId, int pgNo) {
+            return new BTreePageId(tableId, pgNo, BTreePageId.ROOT_PTR);
+        }
+
+        @Override
+        public Page makePage(DbFile file, PageId pid, byte[] data) throws IOException {
+            return new BTreeRootPtrPage((BTreePageId) pid, data);
+        }
+
+    }, BTREE_INTERNAL(2) {
+        @Override
+        public PageId makeId(int tableId, int pgNo) {
+            return new BTreePageId(tableId, pgNo, BTreePageId.INTERNAL);
+        }
+
+        @Override
+        public Page makePage(DbFile file, PageId pid, byte[] data) throws IOException {
+            return new BTreeInternalPage((BTreePageId) pid, data, ((BTreeFile) file).keyField());
+        }
+
+    }, BTREE_LEAF(3) {
+        @Override
+        public PageId makeId(int tableId, int pgNo) {
+            return new BTreePageId(tableId, pgNo, BTreePageId.LEAF);
+        }
+
+        @Override
+        public Page makePage(DbFile file, PageId pid, byte[] data) throws IOException {
+            return new BTreeLeafPage((BTreePageId) pid, data, ((BTreeFile) file).keyField());
+        }
+
+    }, BTREE_HEADER(4) {
+        @Override
+        public PageId makeId(int tableId, int pgNo) {
+            return new BTreePageId(tableId, pgNo, BTreePageId.HEADER);
+        }
+
+        @Override
+        public Page makePage(DbFile file, PageId pid, byte[] data) throws IOException {
+            return new BTreeHeaderPage((BTreePageId) pid, data);
+        }
+    };
+
+    private static final PageType[] byTag = new PageType[values().length];
+    static {
+        for (PageType t : values()) {
+            byTag[t.tag] = t;
+        }
+    }
+
+    private final byte tag;
+
+    private PageType(int tag) {
+        this.tag = (byte) tag;
+    }
+
+    /**
+     * @return the tag that identifies this type in the log
+     */
+    public byte getTag() {
+        return tag;
+    }
+
+    /**
+     * @return the id of page pgNo of table tableId, if it has this type
+     */
+    public abstract PageId makeId(int tableId, int pgNo);
+
+    /**
+     * @return a page of this type with the given id and contents
+     * @param file The file the page belongs to
+     * @throws IOException if the contents are not a valid page
+     */
+    public abstract Page makePage(DbFile file, PageId pid, byte[] data) throws IOException;
+
+    /**
+     * @return the page type with the given tag
+     * @throws IOException if there is none
+     */
+    public static PageType fromTag(int tag) throws IOException {
+        if (tag < 0 || tag >= byTag.length) {
+            throw new IOException("bad page type " + tag);
+        }
+        return byTag[tag];
+    }
+
+    /**
+     * @return the type of the page with the given id, or null if the id
+     *         is of a kind SimpleDb does not know
+     */
+    public static PageType of(PageId pid) {
+        if (pid instanceof HeapPageId) {
+            return HEAP;
+        }
+        if (!(pid instanceof BTreePageId)) {
+            return null;
+        }
+        switch (((BTreePageId) pid).pgcateg()) {
+        case BTreePageId.ROOT_PTR:
+            return BTREE_ROOT_PTR;
+        case BTreePageId.INTERNAL:
+            return BTREE_INTERNAL;
+        case BTreePageId.LEAF:
+            return BTREE_LEAF;
+        case BTreePageId.HEADER:
+            return BTREE_HEADER;
+        default:
+            return null;
+        }
+    }
+}
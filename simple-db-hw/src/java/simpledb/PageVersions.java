@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * PageVersions keeps the old committed images of pages that running
+ * snapshot transactions may still need.
+ * <p>
+ * Every commit gets the next number of a counter. A snapshot transaction
+ * remembers the number of the last commit before it started, and must see
+ * every page as it was after that commit. When a commit changes a page
+ * while snapshots are running, the page's previous committed image goes to
+ * the front of the page's version chain, together with the number of the
+ * commit that produced it; the page itself is stamped with the new number.
+ * A snapshot with number s reads the page itself if its stamp is at most s,
+ * and otherwise the newest image in the chain produced at or before s.
+ * <p>
+ * Pages committed while no snapshot runs are not stamped: any snapshot that
+ * starts later sees those commits anyway. Images no running snapshot can
+ * see any more are dropped when a snapshot ends.
+ * <p>
+ * The BufferPool installs a commit and reads the current committed image
+ * of a page while holding the monitor of this object, so that a snapshot
+ * never sees half of a commit.
+ */
+public class PageVersions {
+
+    /** A committed image of a page and the commit that produced it. */
+    private static class Version {
+        final long commit;
+        final Page image;
+
+        Version(long commit, Page image) {
+            this.commit = commit;
+            this.image = image;
+        }
+    }
+
+    private long lastCommit = 0;
+    private final HashMap<TransactionId, Long> snapshots = new HashMap<TransactionId, Long>();
+    // volatile so getPage can skip the monitor while there are no snapshots
+    private volatile int numSnapshots = 0;
+    private final HashMap<PageId, Long> stamps = new HashMap<PageId, Long>();
+    private final HashMap<PageId, LinkedList<Version>> chains = new HashMap<PageId, LinkedList<Version>>();
+
+    /**
+     * Start a snapshot for tid.
+     * @return the number of the last commit the snapshot sees
+     */
+    public synchronized long begin(TransactionId tid) {
+        snapshots.put(tid, lastCommit);
+        numSnapshots = snapshots.size();
+        return lastCommit;
+    }
+
+    /**
+     * @return the commit number of tid's snapshot, or -1 if tid is not a
+     *         snapshot transaction
+     */
+    public long snapshotOf(TransactionId tid) {
+        if (numSnapshots == 0) {
+            return -1;
+        }
+        synchronized (this) {
+            Long s = snapshots.get(tid);
+            return s == null ? -1 : s;
+        }
+    }
+
+    /** @return true if any snapshot transaction is running */
+    public boolean hasSnapshots() {
+        return numSnapshots > 0;
+    }
+
+    /**
+     * End tid's snapshot and drop the images nobody can see any more.
+     * @return true if tid was a snapshot transaction
+     */
+    public synchronized boolean end(TransactionId tid) {
+        if (snapshots.remove(tid) == null) {
+            return false;
+        }
+        numSnapshots = snapshots.size();
+        if (snapshots.isEmpty()) {
+            stamps.clear();
+            chains.clear();
+            return true;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (long s : snapshots.values()) {
+            oldest = Math.min(oldest, s);
+        }
+        Iterator<Map.Entry<PageId, LinkedList<Version>>> it = chains.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PageId, LinkedList<Version>> e = it.next();
+            if (stamps.get(e.getKey()) <= oldest) {
+                // every snapshot reads the page itself
+                it.remove();
+                continue;
+            }
+            // keep the newest image the oldest snapshot sees, and the newer ones
+            LinkedList<Version> chain = e.getValue();
+            int keep = 0;
+            for (Version v : chain) {
+                keep++;
+                if (v.commit <= oldest) {
+                    break;
+                }
+            }
+            while (chain.size() > keep) {
+                chain.removeLast();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record a commit. Called with the monitor of this object held, before
+     * the committed pages become the pages' current committed images.
+     *
+     * @param before the committed images, from before the commit, of the
+     *        pages the committing transaction changed
+     */
+    public synchronized void committed(Map<PageId, Page> before) {
+        long commit = ++lastCommit;
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<PageId, Page> e : before.entrySet()) {
+            PageId pid = e.getKey();
+            Long stamp = stamps.get(pid);
+            LinkedList<Version> chain = chains.get(pid);
+            if (chain == null) {
+                chain = new LinkedList<Version>();
+                chains.put(pid, chain);
+            }
+            chain.addFirst(new Version(stamp == null ? 0 : stamp, e.getValue()));
+            stamps.put(pid, commit);
+        }
+    }
+
+    /**
+     * @return the image of pid that the snapshot with number s sees, or null
+     *         if that is the page's current committed image
+     * @throws TransactionAbortedException if the image is gone, which
+     *         cannot happen while the snapshot runs
+     */
+    public synchronized Page lookup(PageId pid, long s) throws TransactionAbortedException {
+        Long stamp = stamps.get(pid);
+        if (stamp == null || stamp <= s) {
+            return null;
+        }
+        for (Version v : chains.get(pid)) {
+            if (v.commit <= s) {
+                return v.image;
+            }
+        }
+        throw new TransactionAbortedException();
+    }
+
+    /** @return the number of old images kept */
+    public synchronized int getNumVersions() {
+        int n = 0;
+        for (LinkedList<Version> chain : chains.values()) {
+            n += chain.size();
+        }
+        return n;
+    }
+}
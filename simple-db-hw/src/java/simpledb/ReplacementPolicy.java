@@ -0,0 +1,71 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up when
+ * it needs room for a new one. The BufferPool reports every page that is
+ * brought in, touched again, or dropped, and asks the policy for a victim
+ * when it is full.
+ * <p>
+ * Policies are not thread safe on their own; the BufferPool serializes all
+ * calls into a policy instance.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /** The replacement policies that BufferPool knows how to build. */
+    public enum Kind {
+        CLOCK,
+        LRU_K,
+        TWO_Q
+    }
+
+    /**
+     * Callback used by {@link #chooseVictim} to ask the BufferPool whether a
+     * candidate page may be evicted right now (e.g. it is not dirty).
+     */
+    public interface EvictionFilter {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Called when a page is read into the pool.
+     *
+     * @param pid the page that was loaded
+     */
+    public void pageLoaded(PageId pid);
+
+    /**
+     * Called on every buffer pool hit.
+     *
+     * @param pid the page that was accessed
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page this policy chose as a victim leaves the pool. A
+     * policy may remember it, e.g. to recognize it if it comes straight back.
+     *
+     * @param pid the page that was evicted
+     */
+    public void pageEvicted(PageId pid);
+
+    /**
+     * Called when a page leaves the pool for any other reason: it was
+     * discarded, or a sequential scan gave it up. Such a departure says
+     * nothing about how hot the page is, so the policy just forgets it.
+     *
+     * @param pid the page that was removed
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Pick the page that should be evicted next. The policy does not forget
+     * the page here; the BufferPool calls {@link #pageEvicted} once the page
+     * is actually gone.
+     *
+     * @param filter decides whether a candidate may be evicted
+     * @return the page to evict, or null if no resident page passes the filter
+     */
+    public PageId chooseVictim(EvictionFilter filter);
+}
@@ -0,0 +1,250 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A SecondaryIndex is a non-clustered B+ tree index on one field of a
+ * HeapFile. Its BTreeFile holds an entry (key, page number, slot) for every
+ * tuple of the table, keyed on the first field, so the entries with a key
+ * give the RecordIds of the matching tuples without scanning the table.
+ * <p>
+ * Once added to the Catalog with {@link Catalog#addIndex}, the index is kept
+ * up to date by {@link BufferPool#insertTuple} and
+ * {@link BufferPool#deleteTuple}, in the same transaction as the change to
+ * the table, and can be read with an {@link IndexScan}.
+ */
+public class SecondaryIndex {
+
+	private final BTreeFile index;
+	private final int tableid;
+	private final int keyField;
+
+	/**
+	 * Create an index on a field of a table.
+	 *
+	 * @param f - the file that stores the index; it should be empty, or hold
+	 * an index on the same field made by an earlier SecondaryIndex
+	 * @param tableid - the id of the indexed HeapFile
+	 * @param keyField - the index of the indexed field
+	 * @throws IllegalArgumentException if the table is not a HeapFile
+	 */
+	public SecondaryIndex(File f, int tableid, int keyField) {
+		if(!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+			throw new IllegalArgumentException("can only index a HeapFile");
+		}
+		this.tableid = tableid;
+		this.keyField = keyField;
+		Type keyType = Database.getCatalog().getTupleDesc(tableid).getFieldType(keyField);
+		this.index = new BTreeFile(f, 0, entryDesc(keyType));
+	}
+
+	/**
+	 * @return the TupleDesc of the entries of an index on a field of the
+	 * given type
+	 */
+	public static TupleDesc entryDesc(Type keyType) {
+		return new TupleDesc(new Type[]{keyType, Type.INT_TYPE, Type.INT_TYPE},
+				new String[]{"key", "page", "slot"});
+	}
+
+	/**
+	 * @return the BTreeFile that stores the entries of this index
+	 */
+	public BTreeFile getIndexFile() {
+		return index;
+	}
+
+	/**
+	 * @return the id of the indexed table
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the index of the indexed field
+	 */
+	public int getKeyField() {
+		return keyField;
+	}
+
+	/**
+	 * @return the entry that points at t, which must have a RecordId
+	 */
+	private Tuple entryFor(Tuple t) {
+		RecordId rid = t.getRecordId();
+		Tuple entry = new Tuple(index.getTupleDesc());
+		entry.setField(0, t.getField(keyField));
+		entry.setField(1, new IntField(rid.getPageId().getPageNumber()));
+		entry.setField(2, new IntField(rid.getTupleNumber()));
+		return entry;
+	}
+
+	/**
+	 * Index the tuples already in the table. Call this on a new index right
+	 * after adding it to the Catalog, before other transactions write the
+	 * table: it waits for the writers already running, then share-locks the
+	 * table until tid completes.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @return the number of tuples indexed
+	 * @throws DbException if the index is not empty
+	 */
+	public int build(TransactionId tid)
+			throws DbException, TransactionAbortedException, IOException {
+		Database.getBufferPool().lockTable(tid, tableid, Permissions.READ_ONLY);
+		return new BTreeBulkLoader(index).load(new Entries(new SeqScan(tid, tableid)));
+	}
+
+	/**
+	 * Add the entry for a tuple that was just inserted into the table.
+	 *
+	 * @param tid - the transaction inserting the tuple
+	 * @param t - the inserted tuple, with its new RecordId
+	 * @return the index pages that were modified
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return index.insertTuple(tid, entryFor(t));
+	}
+
+	/**
+	 * Remove the entry for a tuple that was just deleted from the table.
+	 *
+	 * @param tid - the transaction deleting the tuple
+	 * @param t - the deleted tuple, with the RecordId it had
+	 * @return the index pages that were modified
+	 * @throws DbException if the index has no entry for t
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Tuple target = entryFor(t);
+		DbFileIterator it = index.indexIterator(tid,
+				new IndexPredicate(Predicate.Op.EQUALS, target.getField(0)));
+		it.open();
+		try {
+			while(it.hasNext()) {
+				Tuple entry = it.next();
+				if(entry.getField(1).equals(target.getField(1))
+						&& entry.getField(2).equals(target.getField(2))) {
+					return index.deleteTuple(tid, entry);
+				}
+			}
+		}
+		finally {
+			it.close();
+		}
+		throw new DbException("no index entry for tuple " + t.getRecordId());
+	}
+
+	/**
+	 * Get an iterator over the tuples of the table whose key satisfies the
+	 * predicate, in key order.
+	 *
+	 * @param tid - the transaction reading the tuples
+	 * @param ipred - the predicate on the indexed field
+	 * @return an iterator over the matching tuples of the table
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new IndexIterator(tid, index.indexIterator(tid, ipred));
+	}
+
+	/**
+	 * Iterator over the tuples an iterator over index entries points at.
+	 */
+	private class IndexIterator extends AbstractDbFileIterator {
+
+		private final TransactionId tid;
+		private final DbFileIterator entries;
+
+		IndexIterator(TransactionId tid, DbFileIterator entries) {
+			this.tid = tid;
+			this.entries = entries;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			entries.open();
+		}
+
+		/**
+		 * Read the page of the next entry and return the tuple it points at.
+		 * Every entry was added or removed together with its tuple, so the
+		 * slot is only empty if the index is broken.
+		 */
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if(!entries.hasNext()) {
+				return null;
+			}
+			Tuple entry = entries.next();
+			HeapPageId pid = new HeapPageId(tableid, ((IntField) entry.getField(1)).getValue());
+			int slot = ((IntField) entry.getField(2)).getValue();
+			HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			Tuple t = page.getTuple(slot);
+			if(t == null) {
+				throw new DbException("index entry points at empty slot " + slot + " of " + pid);
+			}
+			return t;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			entries.close();
+		}
+	}
+
+	/**
+	 * Operator that turns the tuples of the table into their index entries,
+	 * for the bulk loader.
+	 */
+	private class Entries extends Operator {
+
+		private static final long serialVersionUID = 1L;
+		private OpIterator child;
+
+		Entries(OpIterator child) {
+			this.child = child;
+		}
+
+		public TupleDesc getTupleDesc() {
+			return index.getTupleDesc();
+		}
+
+		public void open() throws DbException, NoSuchElementException,
+				TransactionAbortedException {
+			child.open();
+			super.open();
+		}
+
+		public void close() {
+			super.close();
+			child.close();
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			child.rewind();
+		}
+
+		protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+			return child.hasNext() ? entryFor(child.next()) : null;
+		}
+
+		@Override
+		public OpIterator[] getChildren() {
+			return new OpIterator[] { child };
+		}
+
+		@Override
+		public void setChildren(OpIterator[] children) {
+			child = children[0];
+		}
+	}
+}
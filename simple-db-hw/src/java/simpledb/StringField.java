@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -9,6 +11,13 @@ public class StringField implements Field {
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * The charset strings are stored in. It has one byte per character, so a
+	 * string of maxSize characters fits in maxSize bytes; characters it
+	 * cannot encode are stored as '?'.
+	 */
+	public static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
 	private final String value;
 	private final int maxSize;
 
@@ -54,18 +63,21 @@ public class StringField implements Field {
 	 *            Where the string is written
 	 */
 	public void serialize(DataOutputStream dos) throws IOException {
-		String s = value;
-		int overflow = maxSize - s.length();
-		if (overflow < 0) {
-			String news = s.substring(0, maxSize);
-			s = news;
-		}
-		dos.writeInt(s.length());
-		dos.writeBytes(s);
+		byte[] bytes = getBytes();
+		dos.writeInt(bytes.length);
+		dos.write(bytes);
+		int overflow = maxSize - bytes.length;
 		while (overflow-- > 0)
 			dos.write((byte) 0);
 	}
 
+	/**
+	 * @return the bytes this string is stored as, in {@link #CHARSET}
+	 */
+	public byte[] getBytes() {
+		return value.getBytes(CHARSET);
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
@@ -10,11 +10,21 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    volatile boolean snapshot = false;
 
     public Transaction() {
         tid = new TransactionId();
     }
 
+    /**
+     * Start the transaction as a read-only snapshot: it sees the database
+     * as of this moment, takes no locks and writes no log records.
+     */
+    public void startSnapshot() {
+        Database.getBufferPool().beginSnapshot(tid);
+        snapshot = true;
+    }
+
     /** Start the transaction running */
     public void start() {
         started = true;
@@ -42,6 +52,11 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
+        if (snapshot) {
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            snapshot = false;
+        }
+
         if (started) {
             //write commit / abort records
             if (abort) {
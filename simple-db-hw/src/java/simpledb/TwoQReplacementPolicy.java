@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). A page seen for the first time is
+ * placed on the FIFO queue A1in. When it is evicted from A1in its id is kept
+ * on the ghost queue A1out; if it is loaded again while remembered there it
+ * is promoted to Am, an LRU list of pages that have proven to be hot.
+ * Pages that are only ever touched once -- typically by a sequential scan --
+ * never reach Am, so they cannot push out the hot set. Only pages this
+ * policy evicted are remembered: a page that was discarded, or that a scan
+ * gave up, proves nothing when it comes back.
+ */
+public class TwoQReplacementPolicy implements ReplacementPolicy {
+
+    /** Fraction of the pool reserved for A1in. */
+    static final double KIN_FRACTION = 0.25;
+    /** Number of ghost entries, as a fraction of the pool size. */
+    static final double KOUT_FRACTION = 0.5;
+
+    private final int kin;
+    private final int kout;
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    // access-ordered, eldest entry is the LRU page
+    private final LinkedHashMap<PageId, Boolean> am;
+
+    /**
+     * @param capacity the number of pages in the buffer pool
+     */
+    public TwoQReplacementPolicy(int capacity) {
+        this.kin = Math.max(1, (int) (capacity * KIN_FRACTION));
+        this.kout = Math.max(1, (int) (capacity * KOUT_FRACTION));
+        this.a1in = new LinkedHashSet<PageId>();
+        this.a1out = new LinkedHashSet<PageId>();
+        this.am = new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+    }
+
+    public void pageLoaded(PageId pid) {
+        if (am.containsKey(pid)) {
+            am.get(pid);
+        } else if (a1in.contains(pid)) {
+            // correlated reference, stays where it is
+        } else if (a1out.remove(pid)) {
+            am.put(pid, Boolean.TRUE);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // a hit in A1in is deliberately ignored; a hit in Am moves the page
+        // to the MRU end
+        am.get(pid);
+    }
+
+    public void pageEvicted(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (!a1in.remove(pid)) {
+            am.remove(pid);
+        }
+    }
+
+    private static PageId firstEvictable(Iterator<PageId> it, EvictionFilter filter) {
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (filter.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public PageId chooseVictim(EvictionFilter filter) {
+        PageId victim;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = firstEvictable(a1in.iterator(), filter);
+            if (victim == null) {
+                victim = firstEvictable(am.keySet().iterator(), filter);
+            }
+        } else {
+            victim = firstEvictable(am.keySet().iterator(), filter);
+            if (victim == null) {
+                victim = firstEvictable(a1in.iterator(), filter);
+            }
+        }
+        return victim;
+    }
+}
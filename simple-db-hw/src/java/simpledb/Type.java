@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,14 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            if (buf.remaining() < 4) {
+                throw new ParseException("couldn't parse", 0);
+            }
+            return new IntField(buf.getInt());
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -37,11 +46,27 @@ public enum Type implements Serializable {
                 byte bs[] = new byte[strLen];
                 dis.read(bs);
                 dis.skipBytes(STRING_LEN-strLen);
-                return new StringField(new String(bs), STRING_LEN);
+                return new StringField(new String(bs, StringField.CHARSET), STRING_LEN);
             } catch (IOException e) {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf) throws ParseException {
+            if (buf.remaining() < getLen()) {
+                throw new ParseException("couldn't parse", 0);
+            }
+            int start = buf.position();
+            int strLen = buf.getInt();
+            if (strLen < 0 || strLen > STRING_LEN) {
+                throw new ParseException("couldn't parse", 0);
+            }
+            byte bs[] = new byte[strLen];
+            buf.get(bs);
+            buf.position(start + getLen());
+            return new StringField(new String(bs, StringField.CHARSET), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +85,13 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the buffer, starting at its current position. The position
+   *   is advanced past the field.
+   * @param buf The buffer to read from
+   * @throws ParseException if the buffer does not hold a value of this type.
+   */
+    public abstract Field parse(ByteBuffer buf) throws ParseException;
+
 }
@@ -0,0 +1,173 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private BTreeFile emptyBTreeFile() throws Exception {
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		return BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+	}
+
+	/**
+	 * Check that the tree is valid and returns exactly the given tuples, in
+	 * key order.
+	 */
+	private void checkTree(BTreeFile bf, ArrayList<ArrayList<Integer>> tuples) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		SystemTestUtil.matchTuples(bf, tid, tuples);
+
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		int last = Integer.MIN_VALUE;
+		while(it.hasNext()) {
+			int key = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(key >= last);
+			last = key;
+			count++;
+		}
+		it.close();
+		assertEquals(tuples.size(), count);
+	}
+
+	@Test
+	public void testLoadEmpty() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		BTreeFile bf = emptyBTreeFile();
+		assertEquals(0, new BTreeBulkLoader(bf).load(tid, hf));
+		assertEquals(0, bf.getFile().length());
+	}
+
+	@Test
+	public void testLoadSingleLeaf() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, null, tuples);
+		BTreeFile bf = emptyBTreeFile();
+		assertEquals(100, new BTreeBulkLoader(bf).load(tid, hf));
+		assertEquals(1, bf.numPages());
+		checkTree(bf, tuples);
+	}
+
+	/**
+	 * Sorting one leaf's worth of tuples at a time spills more runs than
+	 * MERGE_FAN_IN, so the runs are merged in two passes.
+	 */
+	@Test
+	public void testLoadExternalSort() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 40000, 5000, null, tuples);
+		BTreeFile bf = emptyBTreeFile();
+		assertEquals(40000, new BTreeBulkLoader(bf, 1.0, 1).load(tid, hf));
+
+		// 80 full leaves and a root
+		assertEquals(81, bf.numPages());
+		checkTree(bf, tuples);
+
+		// the index finds every copy of a key
+		int key = tuples.get(0).get(0);
+		int expected = 0;
+		for(ArrayList<Integer> tuple : tuples) {
+			if(tuple.get(0) == key) {
+				expected++;
+			}
+		}
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		int found = 0;
+		while(it.hasNext()) {
+			assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+			found++;
+		}
+		it.close();
+		assertEquals(expected, found);
+	}
+
+	@Test
+	public void testLoadThreeLevels() throws Exception {
+		// 61 tuples per leaf, 61 entries per internal page
+		BufferPool.setPageSize(512);
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 5000, null, tuples);
+		BTreeFile bf = emptyBTreeFile();
+		assertEquals(5000, new BTreeBulkLoader(bf, 1.0, 10).load(tid, hf));
+
+		BTreeRootPtrPage rootPtr = bf.getRootPtrPage(tid, new HashMap<PageId, Page>());
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, root.getChildId(0).pgcateg());
+		checkTree(bf, tuples);
+	}
+
+	/**
+	 * Half full leaves take later inserts without splitting.
+	 */
+	@Test
+	public void testFillFactor() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10000, null, tuples);
+		BTreeFile bf = emptyBTreeFile();
+		new BTreeBulkLoader(bf, 0.5, 1).load(tid, hf);
+
+		// 39 leaves of 251 tuples or more, and a root
+		assertEquals(40, bf.numPages());
+		checkTree(bf, tuples);
+
+		for(int i = 0; i < 200; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		}
+		assertEquals(40, bf.numPages());
+	}
+
+	@Test
+	public void testLoadNonEmpty() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		BTreeFile bf = emptyBTreeFile();
+		new BTreeBulkLoader(bf).load(tid, hf);
+		try {
+			new BTreeBulkLoader(bf).load(tid, hf);
+			fail("expected DbException");
+		} catch (DbException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
@@ -172,6 +172,39 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	/**
+	 * An insert that does not split keeps no lock on the pages above its leaf, so it
+	 * does not hold up another transaction that has to split a different leaf.
+	 */
+	@Test(timeout = 20000)
+	public void testInsertDoesNotLockPath() throws Exception {
+		// 100 full leaf pages under an internal root
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bigFile.getId());
+		int low = BTreeUtility.MAX_RAND_VALUE / 4;
+		int high = 3 * BTreeUtility.MAX_RAND_VALUE / 4;
+
+		// make room in the leaf of the low key
+		bp.insertTuple(tid, bigFile.getId(), BTreeUtility.getBTreeTuple(low, 2));
+		bp.transactionComplete(tid);
+
+		TransactionId t1 = new TransactionId();
+		bp.insertTuple(t1, bigFile.getId(), BTreeUtility.getBTreeTuple(low, 2));
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(tid, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		assertFalse(bp.holdsLock(t1, rootPtrId));
+		assertFalse(bp.holdsLock(t1, rootId));
+		bp.transactionComplete(tid);
+
+		// splits the full leaf of the high key, so it needs the root exclusively
+		tid = new TransactionId();
+		bp.insertTuple(tid, bigFile.getId(), BTreeUtility.getBTreeTuple(high, 2));
+		assertTrue(bp.holdsLock(tid, rootId));
+		bp.transactionComplete(t1);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
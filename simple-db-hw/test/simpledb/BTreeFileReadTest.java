@@ -201,6 +201,42 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Index scans keep no lock on the pages above the leaves, so a split of a
+	 * leaf they did not read goes ahead, and a later scan finds the new tuple.
+	 */
+	@Test(timeout = 20000)
+	public void indexIteratorDoesNotLockPath() throws Exception {
+		// 100 full leaf pages under an internal root
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bigFile.getId());
+		IntField low = new IntField(BTreeUtility.MAX_RAND_VALUE / 4);
+		int high = 3 * BTreeUtility.MAX_RAND_VALUE / 4;
+
+		DbFileIterator it = bigFile.indexIterator(tid, new IndexPredicate(Op.LESS_THAN_OR_EQ, low));
+		it.open();
+		int before = 0;
+		while (it.hasNext()) {
+			it.next();
+			before++;
+		}
+		it.close();
+		assertTrue(before > 0);
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+
+		// splits the full leaf of the high key, so it needs the root exclusively
+		TransactionId writer = new TransactionId();
+		bp.insertTuple(writer, bigFile.getId(), BTreeUtility.getBTreeTuple(high, 2));
+		bp.transactionComplete(writer);
+
+		it = bigFile.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(high)));
+		it.open();
+		assertTrue(it.hasNext());
+		it.close();
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,305 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+
+	private BTreeFile bf;
+	private Random rand;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.resetBufferPool(500);
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		rand = new Random(830);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.reset();
+	}
+
+	private static StringField key(String s) {
+		return new StringField(s, Type.STRING_LEN);
+	}
+
+	private static Tuple tuple(String s, int i) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, key(s));
+		t.setField(1, new IntField(i));
+		return t;
+	}
+
+	private String randomKey() {
+		return String.format("user-%07d", rand.nextInt(10000000));
+	}
+
+	/** @return the number of internal levels on the left-most path of the tree */
+	private int internalLevels(TransactionId tid) throws Exception {
+		BTreePageId pid = bf.getRootPtrPage(tid, new HashMap<PageId, Page>()).getRootId();
+		int levels = 0;
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage p = (BTreeInternalPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			pid = p.iterator().next().getLeftChild();
+			levels++;
+		}
+		return levels;
+	}
+
+	/** Check that the tree is valid and holds exactly the given keys. */
+	private void checkTree(TransactionId tid, List<String> expected) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		ArrayList<String> sorted = new ArrayList<String>(expected);
+		Collections.sort(sorted);
+		ArrayList<String> found = new ArrayList<String>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			found.add(((StringField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		assertEquals(sorted, found);
+	}
+
+	@Test
+	public void testSeparator() {
+		assertEquals(key("apr"), BTreeFile.separator(key("apple"), key("apricot")));
+		assertEquals(key("appl"), BTreeFile.separator(key("app"), key("apple")));
+		assertEquals(key("b"), BTreeFile.separator(key("azzz"), key("banana")));
+		assertEquals(key("same"), BTreeFile.separator(key("same"), key("same")));
+		assertEquals(new IntField(7), BTreeFile.separator(new IntField(3), new IntField(7)));
+	}
+
+	/**
+	 * An internal page with short string keys holds many more entries than
+	 * keys of the maximum length, and reads back the same.
+	 */
+	@Test
+	public void testCompactPage() throws Exception {
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), 0);
+		int max = page.getMaxEntries();
+		assertEquals(max, page.getNumEmptySlots());
+
+		int n = 10 * max;
+		for(int i = 0; i < n; i++) {
+			page.insertEntry(new BTreeEntry(key(String.format("customer-%05d", 3 * i)),
+					new BTreePageId(bf.getId(), i + 2, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), i + 3, BTreePageId.LEAF)));
+		}
+		assertEquals(n, page.getNumEntries());
+		assertTrue(page.getNumEmptySlots() > 0);
+
+		BTreeInternalPage copy = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertEquals(n, copy.getNumEntries());
+		Iterator<BTreeEntry> expected = page.iterator();
+		Iterator<BTreeEntry> actual = copy.iterator();
+		while(expected.hasNext()) {
+			BTreeEntry e = expected.next();
+			BTreeEntry a = actual.next();
+			assertEquals(e.getKey(), a.getKey());
+			assertEquals(e.getLeftChild(), a.getLeftChild());
+			assertEquals(e.getRightChild(), a.getRightChild());
+		}
+		assertFalse(actual.hasNext());
+	}
+
+	/**
+	 * A page of keys of the maximum length is full after getMaxEntries of
+	 * them, like a page in the fixed format.
+	 */
+	@Test
+	public void testCompactPageLongKeys() throws Exception {
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), 0);
+		int max = page.getMaxEntries();
+		for(int i = 0; i < max; i++) {
+			char[] chars = new char[Type.STRING_LEN];
+			Arrays.fill(chars, (char) ('a' + i % 26));
+			chars[0] = (char) ('A' + i);
+			page.insertEntry(new BTreeEntry(key(new String(chars)),
+					new BTreePageId(bf.getId(), i + 2, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), i + 3, BTreePageId.LEAF)));
+		}
+		assertEquals(0, page.getNumEmptySlots());
+		assertEquals(max, new BTreeInternalPage(pid, page.getPageData(), 0).getNumEntries());
+	}
+
+	/**
+	 * Inserts and deletes keep a string-keyed tree valid, and its separators
+	 * are short enough that a single root indexes hundreds of leaves.
+	 */
+	@Test
+	public void testInsertDelete() throws Exception {
+		ArrayList<String> keys = new ArrayList<String>();
+		Transaction t = new Transaction();
+		t.start();
+		for(int i = 0; i < 6000; i++) {
+			String k = randomKey();
+			keys.add(k);
+			Database.getBufferPool().insertTuple(t.getId(), bf.getId(), tuple(k, i));
+			if(i % 200 == 199) {
+				t.commit();
+				t = new Transaction();
+				t.start();
+			}
+		}
+		checkTree(t.getId(), keys);
+		// with fixed-size keys, the leaves would need a second internal level
+		assertTrue(bf.numPages() > 2 * new BTreeInternalPage(
+				new BTreePageId(bf.getId(), 0, BTreePageId.INTERNAL),
+				BTreePage.createEmptyPageData(), 0).getMaxEntries());
+		assertEquals(1, internalLevels(t.getId()));
+		t.commit();
+
+		Collections.shuffle(keys, rand);
+		List<String> deleted = keys.subList(0, 4000);
+		t = new Transaction();
+		t.start();
+		int n = 0;
+		for(String k : deleted) {
+			DbFileIterator it = bf.indexIterator(t.getId(), new IndexPredicate(Op.EQUALS, key(k)));
+			it.open();
+			Database.getBufferPool().deleteTuple(t.getId(), it.next());
+			it.close();
+			if(++n % 200 == 0) {
+				t.commit();
+				t = new Transaction();
+				t.start();
+			}
+		}
+		checkTree(t.getId(), keys.subList(4000, keys.size()));
+		t.commit();
+	}
+
+	/**
+	 * A page written in the fixed-size format, before string keys were front
+	 * coded, reads back the same and is written in the new format.
+	 */
+	@Test
+	public void testReadFixedFormat() throws Exception {
+		int keySize = Type.STRING_TYPE.getLen();
+		int slots = (BufferPool.getPageSize() * 8 - (2 * 4 * 8 + 8 + 1)) / (keySize * 8 + 4 * 8 + 1) + 1;
+		int n = slots - 1;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0);
+		dos.writeByte(BTreePageId.LEAF);
+		byte[] header = new byte[(slots + 7) / 8];
+		for(int i = 0; i < slots; i++) {
+			header[i / 8] |= 1 << (i % 8);
+		}
+		dos.write(header);
+		// keys for slots 1 and up, as slot 0 has none
+		ArrayList<String> names = new ArrayList<String>();
+		for(int i = 1; i < slots; i++) {
+			char[] chars = new char[Type.STRING_LEN];
+			Arrays.fill(chars, 'x');
+			String name = String.format("%03d", i) + new String(chars);
+			names.add(name);
+			key(name).serialize(dos);
+		}
+		for(int i = 0; i < slots; i++) {
+			dos.writeInt(i + 2);
+		}
+		dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, baos.toByteArray(), 0);
+		assertEquals(n, page.getNumEntries());
+		BTreeInternalPage copy = new BTreeInternalPage(pid, page.getPageData(), 0);
+		for(BTreeInternalPage p : new BTreeInternalPage[]{page, copy}) {
+			Iterator<BTreeEntry> it = p.iterator();
+			for(int i = 0; i < n; i++) {
+				BTreeEntry e = it.next();
+				assertEquals(key(names.get(i)), e.getKey());
+				assertEquals(i + 2, e.getLeftChild().getPageNumber());
+				assertEquals(i + 3, e.getRightChild().getPageNumber());
+				assertEquals(BTreePageId.LEAF, e.getLeftChild().pgcateg());
+			}
+			assertFalse(it.hasNext());
+		}
+	}
+
+	/**
+	 * Keys with characters outside ASCII read back the same from internal
+	 * pages as from leaves, so the separators still match the leaf keys.
+	 */
+	@Test
+	public void testNonAsciiKeys() throws Exception {
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), 0);
+		String[] names = {"Mädchen", "Müller", "Müllerß", "Ñandú", "ñandú", "ÿ"};
+		for(int i = 0; i < names.length; i++) {
+			page.insertEntry(new BTreeEntry(key(names[i]),
+					new BTreePageId(bf.getId(), i + 2, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), i + 3, BTreePageId.LEAF)));
+		}
+		Iterator<BTreeEntry> it = new BTreeInternalPage(pid, page.getPageData(), 0).iterator();
+		for(String name : names) {
+			assertEquals(key(name), it.next().getKey());
+		}
+
+		String[] prefixes = {"Müller-", "Mädchen-", "café-", "naïve-", "Ñandú-"};
+		ArrayList<String> keys = new ArrayList<String>();
+		Transaction t = new Transaction();
+		t.start();
+		for(int i = 0; i < 3000; i++) {
+			String k = prefixes[rand.nextInt(prefixes.length)] + "é" + rand.nextInt(100000);
+			keys.add(k);
+			Database.getBufferPool().insertTuple(t.getId(), bf.getId(), tuple(k, i));
+		}
+		checkTree(t.getId(), keys);
+		assertEquals(1, internalLevels(t.getId()));
+		for(String k : keys.subList(0, 300)) {
+			DbFileIterator found = bf.indexIterator(t.getId(), new IndexPredicate(Op.EQUALS, key(k)));
+			found.open();
+			assertTrue(found.hasNext());
+			assertEquals(key(k), found.next().getField(0));
+			found.close();
+		}
+		t.commit();
+	}
+
+	@Test
+	public void testBulkLoad() throws Exception {
+		ArrayList<String> keys = new ArrayList<String>();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < 6000; i++) {
+			keys.add(randomKey());
+			tuples.add(tuple(keys.get(i), i));
+		}
+		assertEquals(6000, new BTreeBulkLoader(bf).load(new TupleIterator(TD, tuples)));
+		TransactionId tid = new TransactionId();
+		checkTree(tid, keys);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+	}
+}
@@ -0,0 +1,78 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolPartitionTest extends SimpleDbTestBase {
+
+    /**
+     * A partitioned pool never caches more pages than it was given, even
+     * when one partition fills up before the others.
+     */
+    @Test public void capacityIsGlobal() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        BufferPool bp = new BufferPool(16, ReplacementPolicy.Kind.CLOCK, 4);
+        assertEquals(4, bp.getNumPartitions());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 40; ++i) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            assertTrue(bp.getNumResidentPages() <= 16);
+        }
+        assertEquals(16, bp.getNumResidentPages());
+        assertEquals(40, bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Readers working on different pages of a partitioned pool all see the
+     * right pages and leave the pool within its capacity.
+     */
+    @Test public void concurrentReaders() throws Exception {
+        final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        final BufferPool bp = new BufferPool(16, ReplacementPolicy.Kind.CLOCK, 4);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            final int start = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int round = 0; round < 20; ++round) {
+                            TransactionId tid = new TransactionId();
+                            for (int i = start; i < 40; i += 4) {
+                                HeapPageId pid = new HeapPageId(hf.getId(), i);
+                                Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                                assertEquals(pid, p.getId());
+                            }
+                            bp.transactionComplete(tid);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertTrue(bp.getNumResidentPages() <= 16);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPartitionTest.class);
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class DbFileChannelTest extends SimpleDbTestBase {
+
+    private static byte[] bytes(int len, int value) {
+        byte[] b = new byte[len];
+        Arrays.fill(b, (byte) value);
+        return b;
+    }
+
+    /**
+     * Positional reads and writes land at the right offsets, and a read past
+     * the end of the file stops short.
+     */
+    @Test public void positionalReadWrite() throws Exception {
+        File f = File.createTempFile("channel", ".dat");
+        f.deleteOnExit();
+        DbFileChannel io = new DbFileChannel(f);
+        io.write(ByteBuffer.wrap(bytes(10, 1)), 0);
+        io.write(ByteBuffer.wrap(bytes(10, 2)), 20);
+        assertEquals(30, io.size());
+
+        ByteBuffer buf = ByteBuffer.allocate(10);
+        assertEquals(10, io.read(buf, 20));
+        assertEquals(2, buf.get(9));
+
+        buf = ByteBuffer.allocate(10);
+        assertEquals(5, io.read(buf, 25));
+    }
+
+    /**
+     * A handle on a path whose file was deleted and recreated sees the new
+     * file, and handles reopen their file after the cache closed it.
+     */
+    @Test public void reopens() throws Exception {
+        File f = File.createTempFile("channel", ".dat");
+        f.deleteOnExit();
+        DbFileChannel io = new DbFileChannel(f);
+        io.write(ByteBuffer.wrap(bytes(8, 1)), 0);
+
+        f.delete();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(bytes(4, 3));
+        out.close();
+
+        DbFileChannel fresh = new DbFileChannel(f);
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        assertEquals(4, fresh.read(buf, 0));
+        assertEquals(3, buf.get(0));
+
+        DbFileChannel.closeAll();
+        buf = ByteBuffer.allocate(8);
+        assertEquals(4, fresh.read(buf, 0));
+    }
+
+    /**
+     * A read-only handle reads a file without write permission and refuses
+     * writes, and does not hand its channel to a writable handle.
+     */
+    @Test public void readOnly() throws Exception {
+        File f = File.createTempFile("channel", ".dat");
+        f.deleteOnExit();
+        new DbFileChannel(f).write(ByteBuffer.wrap(bytes(8, 1)), 0);
+        DbFileChannel.closeAll();
+        f.setWritable(false);
+
+        DbFileChannel ro = new DbFileChannel(f, true);
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        assertEquals(8, ro.read(buf, 0));
+        assertEquals(1, ro.map(0, 8).get(7));
+        try {
+            ro.write(ByteBuffer.wrap(bytes(8, 2)), 0);
+            fail("write through a read-only handle should fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        f.setWritable(true);
+        DbFileChannel rw = new DbFileChannel(f);
+        rw.write(ByteBuffer.wrap(bytes(4, 2)), 8);
+        assertEquals(12, ro.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DbFileChannelTest.class);
+    }
+}
@@ -121,6 +121,30 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A read-only, memory-mapped heap file returns the same tuples as a
+     * normal one and refuses changes.
+     */
+    @Test
+    public void readOnlyMapped() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile normal = SystemTestUtil.createRandomHeapFile(2, 1200, null, tuples);
+        // the file need not be writable
+        normal.getFile().setWritable(false);
+        HeapFile mapped = new HeapFile(normal.getFile(), td, true);
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        assertTrue(mapped.isReadOnly());
+        assertEquals(normal.numPages(), mapped.numPages());
+        SystemTestUtil.matchTuples(mapped, tuples);
+
+        try {
+            mapped.insertTuple(tid, Utility.getHeapTuple(1, 2));
+            fail("insert into a read-only table should fail");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
     /**
      * JUnit suite target
      */
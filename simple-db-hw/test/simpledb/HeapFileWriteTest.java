@@ -43,6 +43,79 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts go to the first page with room, found through the free-space
+     * map, and the map file describes the pages on disk after commit.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        Tuple first = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, first);
+        for (int i = 1; i < 2 * 504; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        assertEquals(-1, empty.getFreeSpaceMap().nextFreePage(0));
+
+        // a slot freed on page 0 is reused before a new page is added
+        empty.deleteTuple(tid, first);
+        assertEquals(0, empty.getFreeSpaceMap().nextFreePage(0));
+        Tuple again = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, again);
+        assertEquals(0, again.getRecordId().getPageId().getPageNumber());
+        assertEquals(2, empty.numPages());
+
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        FreeSpaceMap onDisk = FreeSpaceMap.load(empty.getFile(), empty.numPages());
+        assertNotNull(onDisk);
+        assertEquals(-1, onDisk.nextFreePage(0));
+    }
+
+    /**
+     * A page an aborted insert filled is free again, and the next insert
+     * goes there instead of onto a new page.
+     */
+    @Test public void abortedInsertFreesPage() throws Exception {
+        for (int i = 0; i < 504; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(-1, empty.getFreeSpaceMap().nextFreePage(0));
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        assertEquals(0, empty.getFreeSpaceMap().nextFreePage(0));
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(1, empty.numPages());
+    }
+
+    /**
+     * An insert does not wait for a page another transaction has locked
+     * while there is room on a page nobody has.
+     */
+    @Test(timeout = 10000) public void insertSkipsLockedPages() throws Exception {
+        Tuple onFirst = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, onFirst);
+        Tuple onSecond = null;
+        for (int i = 1; i < 2 * 504; ++i) {
+            onSecond = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, onSecond);
+        }
+        empty.deleteTuple(tid, onFirst);
+        empty.deleteTuple(tid, onSecond);
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+
+        TransactionId other = new TransactionId();
+        HeapPageId p0 = new HeapPageId(empty.getId(), 0);
+        Database.getBufferPool().getPage(other, p0, Permissions.READ_WRITE);
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+        Database.getBufferPool().transactionComplete(other);
+    }
+
     /**
      * JUnit suite target
      */
@@ -120,6 +120,28 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getInt() and HeapPage.getField(), which read
+     * single fields without decoding whole tuples.
+     */
+    @Test public void fieldAccessors() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int slot = 0; slot < EXAMPLE_VALUES.length; ++slot) {
+            assertEquals(EXAMPLE_VALUES[slot][0], page.getInt(slot, 0));
+            assertEquals(EXAMPLE_VALUES[slot][1], page.getInt(slot, 1));
+            assertEquals(new IntField(EXAMPLE_VALUES[slot][1]), page.getField(slot, 1));
+            assertEquals(slot, page.getTuple(slot).getRecordId().getTupleNumber());
+        }
+        assertEquals(null, page.getTuple(EXAMPLE_VALUES.length));
+
+        // an inserted tuple is read back through the same accessors
+        Tuple t = Utility.getHeapTuple(new int[] { 7, 8 });
+        page.insertTuple(t);
+        int slot = t.getRecordId().getTupleNumber();
+        assertEquals(8, page.getInt(slot, 1));
+        assertTrue(t == page.getTuple(slot));
+    }
+
     /**
      * JUnit suite target
      */
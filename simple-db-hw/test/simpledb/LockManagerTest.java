@@ -0,0 +1,207 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private static final int POLL_INTERVAL = 100;
+
+    private LockManager lm;
+    private PageId p0, p1;
+
+    /** Acquires a lock from its own thread and remembers the outcome. */
+    private static class Acquirer extends Thread {
+        final LockManager lm;
+        final TransactionId tid;
+        final Object res;
+        final LockManager.LockType type;
+        volatile boolean acquired;
+        volatile boolean aborted;
+
+        Acquirer(LockManager lm, TransactionId tid, Object res, LockManager.LockType type) {
+            this.lm = lm;
+            this.tid = tid;
+            this.res = res;
+            this.type = type;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                lm.acquire(tid, res, type);
+                acquired = true;
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+            }
+        }
+    }
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /**
+     * A reader that arrives after a queued writer waits behind it, and is
+     * granted once the writer is done.
+     */
+    @Test public void fifoWriterNotStarved() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquire(t1, p0, LockManager.LockType.SLOCK);
+        Acquirer w = new Acquirer(lm, t2, p0, LockManager.LockType.XLOCK);
+        Thread.sleep(POLL_INTERVAL);
+        Acquirer r = new Acquirer(lm, t3, p0, LockManager.LockType.SLOCK);
+        Thread.sleep(POLL_INTERVAL);
+        assertFalse(w.acquired);
+        assertFalse(r.acquired);
+
+        lm.releaseTransaction(t1);
+        w.join(1000);
+        assertTrue(w.acquired);
+        assertFalse(r.acquired);
+
+        lm.releaseTransaction(t2);
+        r.join(1000);
+        assertTrue(r.acquired);
+        assertEquals(2, lm.getLockWaits());
+        assertEquals(0, lm.getDeadlockVictims());
+    }
+
+    /**
+     * Only the youngest transaction of a deadlock is aborted; the older one
+     * gets its lock once the victim releases.
+     */
+    @Test public void youngestIsVictim() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquire(older, p0, LockManager.LockType.XLOCK);
+        lm.acquire(younger, p1, LockManager.LockType.XLOCK);
+        Acquirer a = new Acquirer(lm, older, p1, LockManager.LockType.XLOCK);
+        Acquirer b = new Acquirer(lm, younger, p0, LockManager.LockType.XLOCK);
+
+        b.join(10 * LockManager.DETECT_INTERVAL + 1000);
+        assertTrue(b.aborted);
+        assertFalse(a.aborted);
+        assertEquals(1, lm.getDeadlockVictims());
+
+        lm.releaseTransaction(younger);
+        a.join(1000);
+        assertTrue(a.acquired);
+        assertTrue(lm.holdsLock(older, p1));
+    }
+
+    /**
+     * A deadlock whose waits span the queues of many pages, and so many
+     * lock table stripes, is still found, and only its youngest member is
+     * aborted.
+     */
+    @Test public void deadlockAcrossStripes() throws Exception {
+        int n = 8;
+        TransactionId[] tids = new TransactionId[n];
+        PageId[] pids = new PageId[n];
+        for (int i = 0; i < n; ++i) {
+            tids[i] = new TransactionId();
+            pids[i] = new HeapPageId(2, i);
+            lm.acquire(tids[i], pids[i], LockManager.LockType.XLOCK);
+        }
+        Acquirer[] waits = new Acquirer[n];
+        for (int i = 0; i < n; ++i) {
+            waits[i] = new Acquirer(lm, tids[i], pids[(i + 1) % n], LockManager.LockType.XLOCK);
+        }
+
+        waits[n - 1].join(10 * LockManager.DETECT_INTERVAL + 1000);
+        assertTrue(waits[n - 1].aborted);
+        assertEquals(1, lm.getDeadlockVictims());
+        lm.releaseTransaction(tids[n - 1]);
+        for (int i = n - 2; i >= 0; --i) {
+            waits[i].join(1000);
+            assertTrue(waits[i].acquired);
+            lm.releaseTransaction(tids[i]);
+        }
+        for (int i = 0; i < n; ++i) {
+            assertEquals(null, lm.getLockByTid(tids[i]));
+        }
+    }
+
+    /**
+     * Two readers that both try to upgrade deadlock; one of them wins.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, p0, LockManager.LockType.SLOCK);
+        lm.acquire(t2, p0, LockManager.LockType.SLOCK);
+        Acquirer a = new Acquirer(lm, t1, p0, LockManager.LockType.XLOCK);
+        Acquirer b = new Acquirer(lm, t2, p0, LockManager.LockType.XLOCK);
+
+        b.join(10 * LockManager.DETECT_INTERVAL + 1000);
+        assertTrue(b.aborted);
+        lm.releaseTransaction(t2);
+        a.join(1000);
+        assertTrue(a.acquired);
+    }
+
+    /**
+     * Intention locks on a table are compatible with each other; a shared
+     * table lock waits for the exclusive intention holders.
+     */
+    @Test public void intentionLocks() throws Exception {
+        Object table = LockManager.table(1);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquire(t1, table, LockManager.LockType.IX);
+        lm.acquire(t2, table, LockManager.LockType.IS);
+        assertTrue(lm.tryAcquire(t2, table, LockManager.LockType.IX));
+        assertFalse(lm.tryAcquire(t3, table, LockManager.LockType.SLOCK));
+        Acquirer s = new Acquirer(lm, t3, table, LockManager.LockType.SLOCK);
+
+        Thread.sleep(POLL_INTERVAL);
+        assertFalse(s.acquired);
+        lm.releaseTransaction(t1);
+        Thread.sleep(POLL_INTERVAL);
+        assertFalse(s.acquired);
+        lm.releaseTransaction(t2);
+        s.join(1000);
+        assertTrue(s.acquired);
+        // a table lock does not count as a page lock
+        assertEquals(0, lm.getLockByTid(t3).size());
+    }
+
+    /**
+     * A shared lock that also needs to be an intention exclusive one becomes
+     * SIX, which readers of single pages can share but writers cannot.
+     */
+    @Test public void sharedIntentionExclusive() throws Exception {
+        Object table = LockManager.table(1);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, table, LockManager.LockType.SLOCK);
+        lm.acquire(t1, table, LockManager.LockType.IX);
+        assertTrue(lm.tryAcquire(t2, table, LockManager.LockType.IS));
+        assertFalse(lm.tryAcquire(t2, table, LockManager.LockType.IX));
+        assertFalse(lm.tryAcquire(t2, table, LockManager.LockType.SLOCK));
+        // SIX still covers what t1 asked for before
+        assertTrue(lm.tryAcquire(t1, table, LockManager.LockType.SLOCK));
+        assertTrue(lm.tryAcquire(t1, table, LockManager.LockType.IX));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
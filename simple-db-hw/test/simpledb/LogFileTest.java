@@ -0,0 +1,190 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+    private static final int COMMITS_PER_THREAD = 25;
+
+    /** Runs BEGIN/COMMIT pairs against a log from its own thread. */
+    private static class Committer extends Thread {
+        final LogFile log;
+        volatile Exception error;
+
+        Committer(LogFile log) {
+            this.log = log;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                for (int i = 0; i < COMMITS_PER_THREAD; ++i) {
+                    TransactionId tid = new TransactionId();
+                    log.logXactionBegin(tid);
+                    log.logCommit(tid);
+                }
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Concurrent commits all complete and never need more log syncs than
+     * there are commits; waiting committers share a sync.
+     */
+    @Test public void groupCommit() throws Exception {
+        File f = File.createTempFile("log", ".dat");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+
+        Committer[] committers = new Committer[THREADS];
+        for (int i = 0; i < THREADS; ++i) {
+            committers[i] = new Committer(log);
+            committers[i].start();
+        }
+        for (Committer c : committers) {
+            c.join(60000);
+            if (c.error != null) {
+                throw c.error;
+            }
+        }
+
+        int commits = THREADS * COMMITS_PER_THREAD;
+        assertEquals(2 * commits, log.getTotalRecords());
+        assertTrue(log.getForceCount() >= 1);
+        assertTrue(log.getForceCount() <= commits);
+
+        // nothing new to sync: force returns without asking the flusher
+        long forces = log.getForceCount();
+        log.force();
+        assertEquals(forces, log.getForceCount());
+    }
+
+    /**
+     * A one-tuple insert is logged as a DELTA record of a few dozen bytes,
+     * and its ranges undo and redo the change on the page on disk.
+     */
+    @Test public void deltaRecords() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = (HeapPage) hf.readPage(pid);
+        HeapPage after = new HeapPage(pid, before.getPageData());
+        after.insertTuple(Utility.getHeapTuple(new int[] { 7, 8 }));
+
+        File f = File.createTempFile("log", ".dat");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+        log.logXactionBegin(new TransactionId());
+        long start = log.currentOffset;
+        log.logWrite(new TransactionId(), before, after);
+        assertTrue(log.currentOffset - start < 100);
+
+        LogFile.PageDelta delta = LogFile.PageDelta.diff(before, after);
+        delta.apply(true);
+        assertTrue(Arrays.equals(after.getPageData(), hf.readPage(pid).getPageData()));
+        delta.apply(false);
+        assertTrue(Arrays.equals(before.getPageData(), hf.readPage(pid).getPageData()));
+    }
+
+    private static int countSegments(File dir, long segmentSize) {
+        int n = 0;
+        for (File seg : dir.listFiles()) {
+            if (seg.getName().startsWith("log.")) {
+                assertTrue(seg.length() <= segmentSize);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * A checkpoint deletes the segments that end before the log's recovery
+     * horizon, and recovery still finds the transactions that were running.
+     */
+    @Test public void segmentTruncation() throws Exception {
+        File dir = Files.createTempDirectory("log").toFile();
+        File f = new File(dir, "log");
+        LogFile log = new LogFile(f, 256);
+        for (int i = 0; i < 50; ++i) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        log.logXactionBegin(new TransactionId());
+        int segments = countSegments(dir, 256);
+        assertTrue(segments > 4);
+
+        log.logCheckpoint();
+        assertTrue(countSegments(dir, 256) <= 2);
+
+        // the running transaction is undone and aborted
+        LogFile recovered = new LogFile(f, 256);
+        recovered.recover();
+        assertEquals(1, recovered.getTotalRecords());
+
+        for (File seg : dir.listFiles()) {
+            seg.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Redo spreads the pages over several lanes and still applies the
+     * changes to each page in log order.
+     */
+    @Test public void parallelRedo() throws Exception {
+        final int pages = 4 * LogFile.REDO_THREADS + 3;
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        File dir = Files.createTempDirectory("log").toFile();
+        File f = new File(dir, "log");
+        LogFile log = new LogFile(f);
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        byte[][] expected = new byte[pages][];
+        for (int p = 0; p < pages; ++p) {
+            HeapPageId pid = new HeapPageId(hf.getId(), p);
+            HeapPage page = (HeapPage) hf.readPage(pid);
+            // two changes to every page; only the second may survive
+            for (int i = 0; i < 2; ++i) {
+                HeapPage after = new HeapPage(pid, page.getPageData());
+                after.deleteTuple(after.iterator().next());
+                log.logWrite(tid, page, after);
+                page = after;
+            }
+            expected[p] = page.getPageData();
+        }
+        log.logCommit(tid);
+
+        new LogFile(f).recover();
+        for (int p = 0; p < pages; ++p) {
+            Page onDisk = hf.readPage(new HeapPageId(hf.getId(), p));
+            assertTrue(Arrays.equals(expected[p], onDisk.getPageData()));
+        }
+
+        for (File seg : dir.listFiles()) {
+            seg.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
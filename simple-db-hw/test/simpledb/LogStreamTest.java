@@ -0,0 +1,103 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogStreamTest extends SimpleDbTestBase {
+
+    private static final long SEGMENT_SIZE = 100;
+
+    private File dir;
+    private File control;
+
+    @Before public void createDir() throws Exception {
+        dir = Files.createTempDirectory("log").toFile();
+        control = new File(dir, "log");
+    }
+
+    @After public void deleteDir() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static void writeRecords(LogStream s, int n) throws Exception {
+        for (int i = 0; i < n; ++i) {
+            s.writeInt(i);
+            s.writeLong(-i);
+            s.writeByte(i);
+            s.write(new byte[] { 1, 2, 3 });
+        }
+    }
+
+    private static void checkRecords(LogStream s, int n) throws Exception {
+        byte[] b = new byte[3];
+        for (int i = 0; i < n; ++i) {
+            assertEquals(i, s.readInt());
+            assertEquals(-i, s.readLong());
+            assertEquals((byte) i, s.readByte());
+            s.readFully(b);
+            assertEquals(3, b[2]);
+        }
+    }
+
+    /**
+     * Values read back the same whether they are still in the buffer,
+     * spread over several segments, or read by a new stream.
+     */
+    @Test public void readBack() throws Exception {
+        LogStream s = new LogStream(control, SEGMENT_SIZE);
+        writeRecords(s, 50);
+        assertEquals(50 * 16, s.length());
+
+        // the reads must see the buffered bytes
+        s.seek(0);
+        checkRecords(s, 50);
+        assertEquals(-1, s.read(new byte[1]));
+
+        s.seek(s.length());
+        writeRecords(s, 10);
+        s.flush();
+        s.force();
+        assertEquals(SEGMENT_SIZE, new File(dir, "log.8").length());
+
+        LogStream reopened = new LogStream(control, SEGMENT_SIZE);
+        assertEquals(60 * 16, reopened.length());
+        reopened.seek(0);
+        checkRecords(reopened, 50);
+        checkRecords(reopened, 10);
+    }
+
+    /** Truncation deletes only the segments that end before the new start. */
+    @Test public void truncate() throws Exception {
+        LogStream s = new LogStream(control, SEGMENT_SIZE);
+        writeRecords(s, 50);
+        s.truncateBefore(16 * 20);
+        assertEquals(16 * 20, s.getStart());
+        assertTrue(!new File(dir, "log.2").exists());
+        assertTrue(new File(dir, "log.3").exists());
+
+        LogStream reopened = new LogStream(control, SEGMENT_SIZE);
+        assertEquals(16 * 20, reopened.getStart());
+        reopened.seek(16 * 20);
+        assertEquals(20, reopened.readInt());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogStreamTest.class);
+    }
+}
@@ -0,0 +1,181 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.EvictionFilter ANY =
+        new ReplacementPolicy.EvictionFilter() {
+            public boolean canEvict(PageId pid) {
+                return true;
+            }
+        };
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /** Filter that refuses a fixed set of pages, as if they were dirty. */
+    private static ReplacementPolicy.EvictionFilter except(final PageId... pinned) {
+        final HashSet<PageId> set = new HashSet<PageId>();
+        for (PageId p : pinned)
+            set.add(p);
+        return new ReplacementPolicy.EvictionFilter() {
+            public boolean canEvict(PageId pid) {
+                return !set.contains(pid);
+            }
+        };
+    }
+
+    /**
+     * CLOCK gives recently referenced pages a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy p = new ClockReplacementPolicy(3);
+        p.pageLoaded(pid(0));
+        p.pageLoaded(pid(1));
+        p.pageLoaded(pid(2));
+        // the first sweep clears every bit, then page 0 goes
+        assertEquals(pid(0), p.chooseVictim(ANY));
+        p.pageEvicted(pid(0));
+        p.pageLoaded(pid(3));
+        // page 1 is touched again, so page 2 is the next without a reference
+        p.pageAccessed(pid(1));
+        assertEquals(pid(2), p.chooseVictim(ANY));
+    }
+
+    /**
+     * LRU-K prefers pages that have been referenced fewer than K times.
+     */
+    @Test public void lruKScanResistance() {
+        ReplacementPolicy p = new LRUKReplacementPolicy(4);
+        p.pageLoaded(pid(0));
+        p.pageAccessed(pid(0));
+        p.pageLoaded(pid(1));
+        p.pageAccessed(pid(1));
+        // a scan touches pages 2 and 3 once each
+        p.pageLoaded(pid(2));
+        p.pageLoaded(pid(3));
+        assertEquals(pid(2), p.chooseVictim(ANY));
+        p.pageEvicted(pid(2));
+        assertEquals(pid(3), p.chooseVictim(ANY));
+        p.pageEvicted(pid(3));
+        // among pages with K references the oldest K-th reference goes
+        assertEquals(pid(0), p.chooseVictim(ANY));
+    }
+
+    /**
+     * 2Q evicts from A1in first and promotes pages seen again via A1out.
+     */
+    @Test public void twoQPromotion() {
+        ReplacementPolicy p = new TwoQReplacementPolicy(4);
+        p.pageLoaded(pid(0));
+        p.pageLoaded(pid(1));
+        assertEquals(pid(0), p.chooseVictim(ANY));
+        p.pageEvicted(pid(0));
+        // page 0 comes back while remembered in A1out: it becomes hot
+        p.pageLoaded(pid(0));
+        p.pageLoaded(pid(2));
+        p.pageLoaded(pid(3));
+        // A1in is over its share, so its oldest page goes, not the hot one
+        assertEquals(pid(1), p.chooseVictim(ANY));
+    }
+
+    /**
+     * 2Q only remembers pages it evicted itself. A page the BufferPool
+     * discarded, e.g. on abort, or that left the scan ring comes back to
+     * A1in, not Am.
+     */
+    @Test public void twoQIgnoresRemovals() {
+        // kin is 2
+        ReplacementPolicy p = new TwoQReplacementPolicy(8);
+        p.pageLoaded(pid(9));
+        p.pageLoaded(pid(0));
+        p.pageRemoved(pid(0));
+        p.pageLoaded(pid(0));
+        p.pageLoaded(pid(1));
+        // A1in holds 9, 0 and 1, so its oldest page goes
+        assertEquals(pid(9), p.chooseVictim(ANY));
+
+        // had page 0 been evicted instead, it would be hot now
+        p = new TwoQReplacementPolicy(8);
+        p.pageLoaded(pid(9));
+        p.pageLoaded(pid(0));
+        p.pageEvicted(pid(0));
+        p.pageLoaded(pid(0));
+        p.pageLoaded(pid(1));
+        assertEquals(pid(0), p.chooseVictim(ANY));
+    }
+
+    /**
+     * Every policy honours the eviction filter and gives up when nothing
+     * can be evicted.
+     */
+    @Test public void filterRespected() {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            ReplacementPolicy p = BufferPool.newReplacementPolicy(kind, 2);
+            p.pageLoaded(pid(0));
+            p.pageLoaded(pid(1));
+            assertEquals(kind.toString(), pid(1), p.chooseVictim(except(pid(0))));
+            assertNull(kind.toString(), p.chooseVictim(except(pid(0), pid(1))));
+            p.pageRemoved(pid(0));
+            p.pageRemoved(pid(1));
+            assertNull(kind.toString(), p.chooseVictim(ANY));
+        }
+    }
+
+    /**
+     * BufferPool counts hits and misses.
+     */
+    @Test public void hitMissCounters() throws Exception {
+        HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        PageId p0 = new HeapPageId(hf.getId(), 0);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        assertEquals(1, bp.getMissCount());
+        assertEquals(2, bp.getHitCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A sequential scan recycles its own frames instead of evicting the
+     * pages other transactions are working with.
+     */
+    @Test public void scanKeepsWorkingSet() throws Exception {
+        HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        BufferPool bp = Database.resetBufferPool(8);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 4; ++i)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            scan.next();
+        scan.close();
+
+        long misses = bp.getMissCount();
+        for (int i = 0; i < 4; ++i)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertEquals(misses, bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
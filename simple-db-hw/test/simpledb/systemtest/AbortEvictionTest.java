@@ -38,6 +38,75 @@ public class AbortEvictionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    private static int deleteAll(HeapFile f, Transaction t)
+            throws DbException, TransactionAbortedException {
+        Delete delete = new Delete(t.getId(), new SeqScan(t.getId(), f.getId(), ""));
+        delete.open();
+        int count = ((IntField) delete.next().getField(0)).getValue();
+        delete.close();
+        return count;
+    }
+
+    private static int countTuples(HeapFile f, Transaction t)
+            throws DbException, TransactionAbortedException {
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        int count = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            count++;
+        }
+        ss.close();
+        return count;
+    }
+
+    /** In STEAL mode a transaction may dirty more pages than the pool holds;
+     * aborting it must still undo the pages that were written out.
+     */
+    @Test public void testStealThenAbort()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(3);
+        Database.getBufferPool().setStealNoForce(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(512*10, deleteAll(f, t));
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        assertEquals(512*10, countTuples(f, t));
+        t.commit();
+    }
+
+    /** In NO FORCE mode a commit leaves the pages dirty; they reach the disk
+     * later, here when the pool is flushed.
+     */
+    @Test public void testStealThenCommit()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(3);
+        Database.getBufferPool().setStealNoForce(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(512*10, deleteAll(f, t));
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertEquals(0, countTuples(f, t));
+        t.commit();
+
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(3);
+        t = new Transaction();
+        t.start();
+        assertEquals(0, countTuples(f, t));
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AbortEvictionTest.class);
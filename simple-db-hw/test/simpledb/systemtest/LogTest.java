@@ -120,8 +120,12 @@ public class LogTest extends SimpleDbTestBase {
         // adds to the catalog.
         file1 = new File("simple1.db");
         file1.delete();
+        FreeSpaceMap.fileFor(file1).delete();
+        FreeSpaceMap.fileFor(file1).deleteOnExit();
         file2 = new File("simple2.db");
         file2.delete();
+        FreeSpaceMap.fileFor(file2).delete();
+        FreeSpaceMap.fileFor(file2).deleteOnExit();
         hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
         hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
     }
@@ -190,6 +194,70 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestNoForceCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // with NO FORCE, a committed insert may only be in the log;
+        // crash, recover: redo must bring it back
+
+        Database.getBufferPool().setStealNoForce(true);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        t1.commit();
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        int emptyOnDisk = ((HeapPage) hf1.readPage(pid)).getNumEmptySlots();
+        int emptyCached = ((HeapPage) Database.getBufferPool().getPage(
+                new TransactionId(), pid, Permissions.READ_ONLY)).getNumEmptySlots();
+        assertEquals(emptyOnDisk - 1, emptyCached);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a checkpoint does not write the committed page; it records it
+        // as dirty, and recovery redoes it from before the checkpoint
+
+        Database.getBufferPool().setStealNoForce(true);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        t1.commit();
+
+        // keep the background writer away from the page
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().getPage(t2.getId(), pid, Permissions.READ_WRITE);
+        int emptyOnDisk = ((HeapPage) hf1.readPage(pid)).getNumEmptySlots();
+        Database.getLogFile().logCheckpoint();
+        assertEquals(emptyOnDisk, ((HeapPage) hf1.readPage(pid)).getNumEmptySlots());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
     @Test public void TestAbort()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -106,6 +106,25 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** A sequential page access reads the next pages ahead in the background. */
+    @Test public void testReadAhead() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(1, 992 * 10, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(table.getId(), 0), Permissions.READ_ONLY, true);
+
+        int expected = 1 + BufferPool.DEFAULT_PREFETCH_DEPTH;
+        for (int i = 0; i < 200 && bp.getNumResidentPages() < expected; ++i)
+            Thread.sleep(10);
+        assertEquals(expected, bp.getNumResidentPages());
+        assertEquals(BufferPool.DEFAULT_PREFETCH_DEPTH, bp.getPrefetchCount());
+
+        for (int i = 1; i <= BufferPool.DEFAULT_PREFETCH_DEPTH; ++i)
+            bp.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        assertEquals(1, bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);
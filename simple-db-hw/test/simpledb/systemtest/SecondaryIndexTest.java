@@ -0,0 +1,172 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+    private static final int MAX_VALUE = 100;
+
+    private static SecondaryIndex createIndex(HeapFile hf, int field, TransactionId tid)
+            throws IOException, DbException, TransactionAbortedException {
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        SecondaryIndex index = new SecondaryIndex(f, hf.getId(), field);
+        Database.getCatalog().addIndex(index);
+        index.build(tid);
+        return index;
+    }
+
+    /** @return the tuples with the given value in the given field */
+    private static ArrayList<ArrayList<Integer>> matching(
+            List<ArrayList<Integer>> tuples, int field, int value) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> tuple : tuples) {
+            if (tuple.get(field) == value)
+                result.add(tuple);
+        }
+        return result;
+    }
+
+    private static void checkLookups(SecondaryIndex index, TransactionId tid,
+            List<ArrayList<Integer>> tuples)
+            throws IOException, DbException, TransactionAbortedException {
+        for (int value = 0; value < MAX_VALUE; value++) {
+            IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(value));
+            SystemTestUtil.matchTuples(new IndexScan(tid, index, ipred),
+                    matching(tuples, index.getKeyField(), value));
+        }
+    }
+
+    /** @return the number of tuples the scan returns, from where it is */
+    private static int count(IndexScan scan)
+            throws DbException, TransactionAbortedException {
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        return n;
+    }
+
+    /** An index built over a table finds every tuple with a key. */
+    @Test public void testBuild()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+        Transaction t = new Transaction();
+        t.start();
+        SecondaryIndex index = createIndex(hf, 1, t.getId());
+        BTreeChecker.checkRep(index.getIndexFile(), t.getId(), new HashMap<PageId, Page>(), true);
+        checkLookups(index, t.getId(), tuples);
+
+        // one scan can be reopened with other predicates
+        IndexScan scan = new IndexScan(t.getId(), index, null);
+        scan.open(new IndexPredicate(Op.LESS_THAN, new IntField(10)));
+        int below = count(scan);
+        scan.rewind(new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(10)));
+        assertEquals(ROWS - below, count(scan));
+        scan.close();
+        t.commit();
+
+        // the index file is not a table
+        Iterator<Integer> it = Database.getCatalog().tableIdIterator();
+        while (it.hasNext())
+            assertTrue(it.next() != index.getIndexFile().getId());
+        assertSame(index, Database.getCatalog().getIndex(hf.getId(), 1));
+        assertNull(Database.getCatalog().getIndex(hf.getId(), 0));
+    }
+
+    /** Inserts and deletes through the BufferPool keep the index up to date. */
+    @Test public void testMaintained()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+        Transaction t = new Transaction();
+        t.start();
+        SecondaryIndex index = createIndex(hf, 0, t.getId());
+        t.commit();
+
+        // delete every tuple with a second field below MAX_VALUE / 2
+        t = new Transaction();
+        t.start();
+        Delete delete = new Delete(t.getId(), new Filter(
+                new Predicate(1, Op.LESS_THAN, new IntField(MAX_VALUE / 2)),
+                new SeqScan(t.getId(), hf.getId(), "")));
+        delete.open();
+        delete.next();
+        delete.close();
+        Iterator<ArrayList<Integer>> it = tuples.iterator();
+        while (it.hasNext()) {
+            if (it.next().get(1) < MAX_VALUE / 2)
+                it.remove();
+        }
+
+        // and insert some new ones, into the slots just freed
+        Random rand = new Random(830);
+        for (int i = 0; i < ROWS / 4; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(rand.nextInt(MAX_VALUE));
+            tuple.add(rand.nextInt(MAX_VALUE));
+            tuples.add(tuple);
+            Tuple tup = new Tuple(hf.getTupleDesc());
+            tup.setField(0, new IntField(tuple.get(0)));
+            tup.setField(1, new IntField(tuple.get(1)));
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tup);
+        }
+        checkLookups(index, t.getId(), tuples);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        BTreeChecker.checkRep(index.getIndexFile(), t.getId(), new HashMap<PageId, Page>(), true);
+        checkLookups(index, t.getId(), tuples);
+        t.commit();
+    }
+
+    /** The planner reads a table through an index for an equality filter. */
+    @Test public void testPlan()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples, "c");
+        String name = Database.getCatalog().getTableName(hf.getId());
+        Transaction t = new Transaction();
+        t.start();
+        createIndex(hf, 1, t.getId());
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(hf.getId(), 1000));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c1", Op.EQUALS, "7");
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", null);
+        OpIterator plan = lp.physicalPlan(t.getId(), stats, false);
+
+        OpIterator filter = ((Operator) plan).getChildren()[0];
+        assertTrue(((Operator) filter).getChildren()[0] instanceof IndexScan);
+        SystemTestUtil.matchTuples(plan, matching(tuples, 1, 7));
+
+        // range filters still scan the table
+        lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t.c1", Op.LESS_THAN, "7");
+        lp.addProjectField("t.c0", null);
+        plan = lp.physicalPlan(t.getId(), stats, false);
+        filter = ((Operator) plan).getChildren()[0];
+        assertFalse(((Operator) filter).getChildren()[0] instanceof IndexScan);
+        t.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
@@ -0,0 +1,121 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class SnapshotTest extends SimpleDbTestBase {
+    private static final int ROWS = 512 * 4;
+
+    private static int deleteAll(HeapFile f, Transaction t)
+            throws DbException, TransactionAbortedException {
+        Delete delete = new Delete(t.getId(), new SeqScan(t.getId(), f.getId(), ""));
+        delete.open();
+        int count = ((IntField) delete.next().getField(0)).getValue();
+        delete.close();
+        return count;
+    }
+
+    private static int countTuples(HeapFile f, Transaction t)
+            throws DbException, TransactionAbortedException {
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        int count = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            count++;
+        }
+        ss.close();
+        return count;
+    }
+
+    /** A snapshot reads pages a running writer holds X locks on, and does
+     * not see that writer's changes even after it commits.
+     */
+    @Test(timeout = 20000) public void testReadWhileWriting()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+
+        Transaction writer = new Transaction();
+        writer.start();
+        assertEquals(ROWS, deleteAll(f, writer));
+
+        Transaction snapshot = new Transaction();
+        snapshot.startSnapshot();
+        assertEquals(ROWS, countTuples(f, snapshot));
+        writer.commit();
+        assertEquals(ROWS, countTuples(f, snapshot));
+
+        Transaction later = new Transaction();
+        later.startSnapshot();
+        assertEquals(0, countTuples(f, later));
+        later.commit();
+        snapshot.commit();
+        assertEquals(0, Database.getBufferPool().getNumPageVersions());
+    }
+
+    /** A writer does not wait for a snapshot that read the pages it changes.
+     */
+    @Test(timeout = 20000) public void testWriteWhileReading()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+
+        Transaction snapshot = new Transaction();
+        snapshot.startSnapshot();
+        assertEquals(ROWS, countTuples(f, snapshot));
+
+        Transaction writer = new Transaction();
+        writer.start();
+        assertEquals(ROWS, deleteAll(f, writer));
+        writer.commit();
+
+        assertEquals(ROWS, countTuples(f, snapshot));
+        assertTrue(Database.getBufferPool().getNumPageVersions() > 0);
+        snapshot.commit();
+        assertEquals(0, Database.getBufferPool().getNumPageVersions());
+    }
+
+    /** Pages a running writer stole to disk are read from their before-images.
+     */
+    @Test(timeout = 20000) public void testReadStolenPages()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        Database.resetBufferPool(3);
+        Database.getBufferPool().setStealNoForce(true);
+
+        Transaction writer = new Transaction();
+        writer.start();
+        assertEquals(ROWS, deleteAll(f, writer));
+
+        Transaction snapshot = new Transaction();
+        snapshot.startSnapshot();
+        assertEquals(ROWS, countTuples(f, snapshot));
+        writer.abort();
+        assertEquals(ROWS, countTuples(f, snapshot));
+        snapshot.commit();
+    }
+
+    /** Snapshots cannot write. */
+    @Test public void testReadOnly()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        Transaction snapshot = new Transaction();
+        snapshot.startSnapshot();
+        try {
+            Database.getBufferPool().getPage(snapshot.getId(),
+                    new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        snapshot.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SnapshotTest.class);
+    }
+}